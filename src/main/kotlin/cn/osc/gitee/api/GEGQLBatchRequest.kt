@@ -0,0 +1,395 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.core.ObjectCodec
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.ObjectNode
+import com.intellij.collaboration.api.dto.GraphQLRequestDTO
+import com.intellij.util.ThrowableConvertor
+import cn.osc.gitee.exceptions.GiteeJsonException
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.Reader
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Several GraphQL queries sent as one document.
+ *
+ * Variables of every operation are prefixed and its root fields are aliased with the same prefix,
+ * fragments shared by the operations are sent once, so the queries whose fragments use variables are not batched.
+ * The response is split back into one response per operation, with the errors routed by their path.
+ */
+internal class GEGQLBatchRequest(url: String, private val operations: List<GiteeApiRequest.Post.GQLQuery<*>>)
+  : GiteeApiRequest.Post<List<GiteeApiResponse>?>(GiteeApiContentHelper.JSON_MIME_TYPE, url) {
+
+  override val body: String
+    get() {
+      val variables = JsonNodeFactory.instance.objectNode()
+      val variableDefinitions = mutableListOf<String>()
+      val selections = StringBuilder()
+      val fragments = LinkedHashMap<String, String>()
+
+      operations.forEachIndexed { index, request ->
+        val operation = parseOperation(request.queryName) ?: throw IllegalStateException("${request.queryName} can't be batched")
+        val prefix = prefix(index)
+        operation.variableDefinitions?.let { variableDefinitions.add(renameVariables(it, prefix)) }
+        selections.append(aliasRootFields(renameVariables(operation.selectionSet, prefix), prefix)!!).append('\n')
+        fragments.putAll(operation.fragments)
+
+        val operationVariables = GiteeApiContentHelper.toJsonTree(request.variablesObject, true) as ObjectNode
+        for ((name, value) in operationVariables.fields()) {
+          variables.set<JsonNode>(prefix + name, value)
+        }
+      }
+
+      val query = buildString {
+        append("query")
+        if (variableDefinitions.isNotEmpty()) variableDefinitions.joinTo(this, ", ", "(", ")")
+        append(" {\n").append(selections).append("}\n")
+        fragments.values.forEach { append(it).append('\n') }
+      }
+      return GiteeApiContentHelper.toJson(GraphQLRequestDTO(query, variables), true)
+    }
+
+  /**
+   * Returns a response for every operation in the order they were passed,
+   * null if the response has an error which can't be attributed to a single operation.
+   *
+   * The root fields of the data are copied to the responses of their operations as they are parsed.
+   */
+  override fun extractResult(response: GiteeApiResponse): List<GiteeApiResponse>? = response.readBody(ThrowableConvertor { reader ->
+    GiteeApiContentHelper.createParser(reader, true).use { split(it) }
+  })
+
+  private fun split(parser: JsonParser): List<GiteeApiResponse>? {
+    if (parser.nextToken() != JsonToken.START_OBJECT) throw GiteeJsonException("Can't parse GitHub response: object expected")
+
+    val responses = operations.map { OperationResponseWriter(parser.codec) }
+    var hasData = false
+    val errors = mutableListOf<JsonNode>()
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      val field = parser.currentName
+      val token = parser.nextToken()
+      when {
+        field == "data" && token == JsonToken.START_OBJECT -> {
+          hasData = true
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            val name = parser.currentName
+            parser.nextToken()
+            val index = operationIndex(name)
+            if (index == null) parser.skipChildren()
+            else responses[index].writeDataField(name.removePrefix(prefix(index)), parser)
+          }
+        }
+        field == "errors" && token == JsonToken.START_ARRAY -> {
+          while (parser.nextToken() != JsonToken.END_ARRAY) errors.add(parser.readValueAsTree())
+        }
+        else -> parser.skipChildren()
+      }
+    }
+
+    for (error in errors) {
+      val index = routeError(error) ?: return null
+      responses[index].errors.add(error)
+    }
+    return responses.map { it.finish(hasData) }
+  }
+
+  private fun operationIndex(alias: String): Int? {
+    val match = BATCH_ALIAS_REGEX.matchEntire(alias) ?: return null
+    return match.groupValues[1].toInt().takeIf { it in operations.indices }
+  }
+
+  /**
+   * Index of the operation which caused the [error], with the alias prefix removed from the error path
+   */
+  private fun routeError(error: JsonNode): Int? {
+    val path = error.get("path") as? ArrayNode ?: return null
+    val root = path.firstOrNull()?.takeIf { it.isTextual }?.asText() ?: return null
+    val index = operationIndex(root) ?: return null
+    path.set(0, JsonNodeFactory.instance.textNode(root.removePrefix(prefix(index))))
+    return index
+  }
+
+  /**
+   * Writes the response of a single operation while the batch response is parsed
+   */
+  private class OperationResponseWriter(private val codec: ObjectCodec) {
+    private val output = ByteArrayOutputStream()
+    private var generator: JsonGenerator? = null
+    val errors = mutableListOf<JsonNode>()
+
+    fun writeDataField(name: String, parser: JsonParser) {
+      val generator = generator ?: startData()
+      generator.writeFieldName(name)
+      generator.copyCurrentStructure(parser)
+    }
+
+    private fun startData(): JsonGenerator = codec.factory.createGenerator(output).also {
+      generator = it
+      it.writeStartObject()
+      it.writeObjectFieldStart("data")
+    }
+
+    fun finish(hasData: Boolean): GiteeApiResponse {
+      val generator =
+        if (hasData) (generator ?: startData()).apply { writeEndObject() }
+        else codec.factory.createGenerator(output).apply {
+          writeStartObject()
+          writeNullField("data")
+        }
+      generator.use {
+        if (errors.isNotEmpty()) {
+          it.writeArrayFieldStart("errors")
+          errors.forEach { error -> codec.writeTree(it, error) }
+          it.writeEndArray()
+        }
+        it.writeEndObject()
+      }
+      return BufferedResponse(output.toByteArray())
+    }
+  }
+
+  private class BufferedResponse(private val body: ByteArray) : GiteeApiResponse {
+    override fun findHeader(headerName: String): String? = null
+
+    override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T =
+      InputStreamReader(ByteArrayInputStream(body), Charsets.UTF_8).use { converter.convert(it) }
+
+    override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T =
+      ByteArrayInputStream(body).use { converter.convert(it) }
+  }
+
+  /**
+   * Operation and fragment definitions of a query document
+   */
+  private class Operation(val variableDefinitions: String?, val selectionSet: String, val fragments: Map<String, String>)
+
+  companion object {
+    private val parsedOperations = ConcurrentHashMap<String, Operation>()
+    private val unsupported: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    private fun prefix(index: Int) = "gql${index}_"
+
+    /**
+     * Batching is only possible for plain queries whose root selection consists of fields
+     */
+    fun canBatch(request: GiteeApiRequest.Post.GQLQuery<*>): Boolean =
+      request.isQuery && GiteeApiContentHelper.toJsonTree(request.variablesObject, true) is ObjectNode
+      && parseOperation(request.queryName) != null
+
+    private fun parseOperation(queryName: String): Operation? {
+      if (unsupported.contains(queryName)) return null
+      parsedOperations[queryName]?.let { return it }
+      val operation = parseOperation(GEGQLQueryLoader.loadQuery(queryName))
+      if (operation == null) unsupported.add(queryName) else parsedOperations[queryName] = operation
+      return operation
+    }
+
+    private fun parseOperation(document: String): Operation? {
+      var operation: String? = null
+      val fragments = LinkedHashMap<String, String>()
+      for (definition in splitDefinitions(document) ?: return null) {
+        if (definition.startsWith("fragment")) {
+          val name = definition.removePrefix("fragment").trimStart().takeWhile { isNameChar(it) }
+          fragments[name] = definition
+        }
+        else {
+          if (operation != null) return null
+          operation = definition
+        }
+      }
+      if (operation == null) return null
+      // a fragment is shared by the operations, so its variables can't get the prefix of one of them
+      if (fragments.values.any(::usesVariables)) return null
+
+      val selectionStart = indexOfOutsideParentheses(operation, '{')
+      if (selectionStart < 0) return null
+      val header = operation.substring(0, selectionStart).trim()
+      if (header.isNotEmpty() && !header.startsWith("query")) return null
+      if (header.contains('@')) return null
+      val variableDefinitions = header.indexOf('(').takeIf { it >= 0 }?.let {
+        header.substring(it + 1, header.lastIndexOf(')')).trim().takeIf(String::isNotEmpty)
+      }
+
+      val selectionSet = operation.substring(selectionStart).trim()
+      val innerSelection = selectionSet.substring(1, selectionSet.length - 1)
+      if (aliasRootFields(innerSelection, "") == null) return null
+      return Operation(variableDefinitions, innerSelection, fragments)
+    }
+
+    /**
+     * Splits a document into top level definitions, null if braces are not balanced
+     */
+    private fun splitDefinitions(document: String): List<String>? {
+      val definitions = mutableListOf<String>()
+      var depth = 0
+      var start = -1
+      var i = 0
+      while (i < document.length) {
+        val c = document[i]
+        if (start < 0 && !c.isWhitespace() && c != ',' && c != '#') start = i
+        when {
+          c == '#' -> i = skipComment(document, i) - 1
+          c == '"' -> i = skipString(document, i) - 1
+          c == '{' -> depth++
+          c == '}' -> {
+            depth--
+            if (depth < 0) return null
+            if (depth == 0) {
+              definitions.add(document.substring(start, i + 1).trim())
+              start = -1
+            }
+          }
+        }
+        i++
+      }
+      return if (depth == 0 && start < 0) definitions else null
+    }
+
+    private fun indexOfOutsideParentheses(text: String, char: Char): Int {
+      var depth = 0
+      for ((i, c) in text.withIndex()) {
+        when (c) {
+          '(' -> depth++
+          ')' -> depth--
+          char -> if (depth == 0) return i
+        }
+      }
+      return -1
+    }
+
+    private fun renameVariables(text: String, prefix: String): String = buildString {
+      var i = 0
+      while (i < text.length) {
+        val c = text[i]
+        when (c) {
+          '"' -> {
+            val end = skipString(text, i)
+            append(text, i, end)
+            i = end
+            continue
+          }
+          '#' -> {
+            val end = skipComment(text, i)
+            append(text, i, end)
+            i = end
+            continue
+          }
+          '$' -> append('$').append(prefix)
+          else -> append(c)
+        }
+        i++
+      }
+    }
+
+    private fun usesVariables(text: String): Boolean {
+      var i = 0
+      while (i < text.length) {
+        when (text[i]) {
+          '"' -> {
+            i = skipString(text, i)
+            continue
+          }
+          '#' -> {
+            i = skipComment(text, i)
+            continue
+          }
+          '$' -> return true
+        }
+        i++
+      }
+      return false
+    }
+
+    /**
+     * Adds [prefix] to the alias of every root field, null if the root selection contains something else than fields
+     */
+    private fun aliasRootFields(selection: String, prefix: String): String? = buildString {
+      var braces = 0
+      var parentheses = 0
+      var previous = ' '
+      var i = 0
+      while (i < selection.length) {
+        val c = selection[i]
+        if (c == '"' || c == '#') {
+          val end = if (c == '"') skipString(selection, i) else skipComment(selection, i)
+          append(selection, i, end)
+          i = end
+          continue
+        }
+
+        if (braces == 0 && parentheses == 0 && isNameStart(c)) {
+          var end = i
+          while (end < selection.length && isNameChar(selection[end])) end++
+          val name = selection.substring(i, end)
+          when {
+            previous == '@' || previous == ':' -> append(name)
+            nextSignificantChar(selection, end) == ':' -> append(prefix).append(name)
+            else -> append(prefix).append(name).append(": ").append(name)
+          }
+          previous = 'a'
+          i = end
+          continue
+        }
+
+        when (c) {
+          '{' -> braces++
+          '}' -> braces--
+          '(' -> parentheses++
+          ')' -> parentheses--
+          '.' -> if (braces == 0 && parentheses == 0) return null
+        }
+        if (!c.isWhitespace() && c != ',') previous = c
+        append(c)
+        i++
+      }
+    }
+
+    private fun nextSignificantChar(text: String, from: Int): Char? {
+      var i = from
+      while (i < text.length) {
+        val c = text[i]
+        if (c == '#') i = skipComment(text, i)
+        else if (c.isWhitespace() || c == ',') i++
+        else return c
+      }
+      return null
+    }
+
+    private val BATCH_ALIAS_REGEX = Regex("gql(\\d+)_.*")
+
+    private fun skipString(text: String, start: Int): Int {
+      if (text.startsWith("\"\"\"", start)) {
+        val end = text.indexOf("\"\"\"", start + 3)
+        return if (end < 0) text.length else end + 3
+      }
+      var i = start + 1
+      while (i < text.length) {
+        when (text[i]) {
+          '\\' -> i++
+          '"' -> return i + 1
+        }
+        i++
+      }
+      return text.length
+    }
+
+    private fun skipComment(text: String, start: Int): Int {
+      val end = text.indexOf('\n', start)
+      return if (end < 0) text.length else end
+    }
+
+    private fun isNameStart(c: Char) = c == '_' || c in 'a'..'z' || c in 'A'..'Z'
+
+    private fun isNameChar(c: Char) = isNameStart(c) || c in '0'..'9'
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.registry.Registry
+import java.io.IOException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Lets concurrent identical requests share a single network call and a single parsed result.
+ *
+ * Requests are identical when they have the same url, accept type, headers, body, result shape, token and priority,
+ * so an interactive request never waits for a call which is shed as a background or polling one.
+ * Only requests with a [GiteeApiRequest.resultKey] take part in it.
+ * Shared call is cancelled only when every waiting caller has cancelled its indicator.
+ *
+ * Every caller gets the same result instance, so it's only enabled with the "gitee.api.requests.coalescing" registry key.
+ */
+internal class GiteeApiCoalescingRequestExecutor(private val delegate: GiteeApiRequestExecutor,
+                                                 private val tokenSupplier: (() -> String)?)
+  : GiteeApiRequestExecutor() {
+
+  override fun addListener(disposable: Disposable, listener: () -> Unit) = delegate.addListener(disposable, listener)
+
+  @Throws(IOException::class, ProcessCanceledException::class)
+  override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
+    indicator.checkCanceled()
+    val key = createKey(request) ?: return delegate.execute(indicator, request)
+    val call = join(key, request)
+    try {
+      return awaitWithCheckCanceled(call.result, indicator, false)
+    }
+    catch (e: ProcessCanceledException) {
+      call.leave()
+      throw e
+    }
+  }
+
+  override fun <T> executeAsync(indicator: ProgressIndicator, request: GiteeApiRequest<T>): CompletableFuture<T> {
+    val key = createKey(request) ?: return delegate.executeAsync(indicator, request)
+    val call = join(key, request)
+    val result = call.result.thenApply { it }
+    result.whenComplete { _, error ->
+      if (error is CancellationException) call.leave()
+    }
+    return cancelWithIndicator(result, indicator)
+  }
+
+  private fun createKey(request: GiteeApiRequest<*>): Key? {
+    val resultKey = request.resultKey ?: return null
+    val body = (request as? GiteeApiRequest.WithBody)?.body?.let(::digest)
+    val identity = tokenSupplier?.let { digest(it()) }
+    return Key(request.url, request.acceptMimeType, request.additionalHeaders, body, resultKey, identity, request.priority)
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  private fun <T> join(key: Key, request: GiteeApiRequest<T>): SharedCall<T> {
+    while (true) {
+      val existing = calls[key]
+      if (existing != null) {
+        if (existing.tryJoin()) {
+          LOG.debug("Request: ${request.url} : Joined in-flight request")
+          return existing as SharedCall<T>
+        }
+        calls.remove(key, existing)
+        continue
+      }
+
+      val call = SharedCall<T>()
+      call.tryJoin()
+      if (calls.putIfAbsent(key, call) != null) continue
+
+      val delegateResult = delegate.executeAsync(call.indicator, request)
+      call.delegateResult = delegateResult
+      delegateResult.whenComplete { value, error ->
+        calls.remove(key, call)
+        if (error != null) call.result.completeExceptionally(error) else call.result.complete(value)
+      }
+      return call
+    }
+  }
+
+  private class SharedCall<T> {
+    val indicator: ProgressIndicator = EmptyProgressIndicator()
+    val result = CompletableFuture<T>()
+
+    @Volatile
+    var delegateResult: CompletableFuture<T>? = null
+
+    private var waiters = 0
+    private var released = false
+
+    @Synchronized
+    fun tryJoin(): Boolean {
+      if (released) return false
+      waiters++
+      return true
+    }
+
+    fun leave() {
+      synchronized(this) {
+        waiters--
+        if (waiters > 0 || result.isDone) return
+        released = true
+      }
+      indicator.cancel()
+      delegateResult?.cancel(true)
+      result.cancel(true)
+    }
+  }
+
+  private data class Key(val url: String,
+                         val acceptMimeType: String?,
+                         val headers: Map<String, String>,
+                         val bodyDigest: String?,
+                         val resultKey: Any,
+                         val identity: String?,
+                         val priority: GiteeApiRequestPriority)
+
+  companion object {
+    private val LOG = logger<GiteeApiCoalescingRequestExecutor>()
+
+    // shared between executors so that the same request made from different places goes to the network once
+    private val calls = ConcurrentHashMap<Key, SharedCall<*>>()
+
+    fun wrapIfEnabled(executor: GiteeApiRequestExecutor, tokenSupplier: (() -> String)?): GiteeApiRequestExecutor =
+      if (Registry.`is`("gitee.api.requests.coalescing", false)) GiteeApiCoalescingRequestExecutor(executor, tokenSupplier)
+      else executor
+  }
+}
@@ -3,10 +3,16 @@ package cn.osc.gitee.api
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.*
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer
 import com.fasterxml.jackson.databind.introspect.VisibilityChecker
+import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import cn.osc.gitee.exceptions.GiteeJsonException
 import java.awt.Image
@@ -14,8 +20,11 @@ import java.awt.image.BufferedImage
 import java.io.IOException
 import java.io.InputStream
 import java.io.Reader
-import java.text.SimpleDateFormat
+import java.time.OffsetDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import javax.imageio.ImageIO
 
 object GiteeApiContentHelper {
@@ -24,14 +33,22 @@ object GiteeApiContentHelper {
   const val V3_HTML_JSON_MIME_TYPE = "application/vnd.github.v3.html+json"
   const val V3_DIFF_JSON_MIME_TYPE = "application/vnd.github.v3.diff+json"
 
+  private val ACCELERATION_MODULES = listOf("com.fasterxml.jackson.module.blackbird.BlackbirdModule",
+                                            "com.fasterxml.jackson.module.afterburner.AfterburnerModule")
+
   private val jackson: ObjectMapper = jacksonObjectMapper().genericConfig()
     .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
 
   private val gqlJackson: ObjectMapper = jacksonObjectMapper().genericConfig()
     .setPropertyNamingStrategy(PropertyNamingStrategy.LOWER_CAMEL_CASE)
 
+  // readers and writers are immutable and thread-safe, so they are built once per type and naming
+  private val readers = ConcurrentHashMap<ReaderKey, ObjectReader>()
+  private val writers = ConcurrentHashMap<WriterKey, ObjectWriter>()
+
   private fun ObjectMapper.genericConfig(): ObjectMapper =
-    this.setDateFormat(SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX"))
+    this.registerModule(JavaTimeDateModule)
+      .registerAccelerationModule()
       .setTimeZone(TimeZone.getDefault())
       .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
       .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
@@ -43,6 +60,25 @@ object GiteeApiContentHelper {
                                            JsonAutoDetect.Visibility.NONE,
                                            JsonAutoDetect.Visibility.ANY))
 
+  /**
+   * Registers Blackbird or Afterburner bytecode generation for property access when one of them is on the classpath
+   */
+  private fun ObjectMapper.registerAccelerationModule(): ObjectMapper {
+    for (moduleClassName in ACCELERATION_MODULES) {
+      val module = try {
+        Class.forName(moduleClassName, true, GiteeApiContentHelper::class.java.classLoader).getConstructor().newInstance() as com.fasterxml.jackson.databind.Module
+      }
+      catch (e: ReflectiveOperationException) {
+        continue
+      }
+      catch (e: LinkageError) {
+        continue
+      }
+      return registerModule(module)
+    }
+    return this
+  }
+
   @Throws(GiteeJsonException::class)
   inline fun <reified T> fromJson(string: String): T = fromJson(string, T::class.java)
 
@@ -50,7 +86,7 @@ object GiteeApiContentHelper {
   @Throws(GiteeJsonException::class)
   fun <T> fromJson(string: String, clazz: Class<T>, gqlNaming: Boolean = false): T {
     try {
-      return getObjectMapper(gqlNaming).readValue(string, clazz)
+      return getReader(gqlNaming, clazz).readValue(string)
     }
     catch (e: JsonParseException) {
       throw GiteeJsonException("Can't parse GitHub response", e)
@@ -60,21 +96,69 @@ object GiteeApiContentHelper {
   @JvmStatic
   @Throws(GiteeJsonException::class)
   fun <T> readJsonObject(reader: Reader, clazz: Class<T>, vararg parameters: Class<*>, gqlNaming: Boolean = false): T {
-    return readJson(reader, jackson.typeFactory.constructParametricType(clazz, *parameters), gqlNaming)
+    return readJson(reader, getReader(gqlNaming, clazz, *parameters))
   }
 
   @JvmStatic
   @Throws(GiteeJsonException::class)
   fun <T> readJsonList(reader: Reader, parameterClass: Class<T>): List<T> {
-    return readJson(reader, jackson.typeFactory.constructCollectionType(List::class.java, parameterClass))
+    return readJson(reader, getReader(false, List::class.java, parameterClass))
+  }
+
+  /**
+   * Decodes a JSON array element by element, so that only one element is held in memory at a time
+   */
+  @JvmStatic
+  @Throws(GiteeJsonException::class)
+  fun <T> readJsonListIncrementally(reader: Reader, parameterClass: Class<T>, gqlNaming: Boolean = false, itemConsumer: (T) -> Unit) {
+    try {
+      createParser(reader, gqlNaming).use { parser ->
+        if (parser.nextToken() != JsonToken.START_ARRAY) throw GiteeJsonException("Can't parse GitHub response: array expected")
+        val itemReader = getReader(gqlNaming, parameterClass)
+        while (true) {
+          val token = parser.nextToken() ?: throw GiteeJsonException("Can't parse GitHub response: unexpected end of array")
+          if (token == JsonToken.END_ARRAY) break
+          itemConsumer(itemReader.readValue(parser))
+        }
+      }
+    }
+    catch (e: JsonProcessingException) {
+      throw GiteeJsonException("Can't parse GitHub response", e)
+    }
   }
 
+  @Throws(IOException::class)
+  internal fun createParser(reader: Reader, gqlNaming: Boolean = false): JsonParser = getObjectMapper(gqlNaming).factory.createParser(reader)
+
+  /**
+   * Binds the value at the current token of [parser], leaving the parser at the last token of that value
+   */
   @Throws(GiteeJsonException::class)
-  private fun <T> readJson(reader: Reader, type: JavaType, gqlNaming: Boolean = false): T {
+  internal fun <T> readJsonObject(parser: JsonParser, clazz: Class<T>, gqlNaming: Boolean = false): T? {
+    try {
+      return getReader(gqlNaming, clazz).readValue(parser)
+    }
+    catch (e: JsonProcessingException) {
+      throw GiteeJsonException("Can't parse GitHub response", e)
+    }
+  }
+
+  @Throws(GiteeJsonException::class)
+  internal fun <T> readJsonList(parser: JsonParser, parameterClass: Class<T>, gqlNaming: Boolean = false): List<T>? {
+    try {
+      return getReader(gqlNaming, List::class.java, parameterClass).readValue(parser)
+    }
+    catch (e: JsonProcessingException) {
+      throw GiteeJsonException("Can't parse GitHub response", e)
+    }
+  }
+
+  @Throws(GiteeJsonException::class)
+  private fun <T> readJson(reader: Reader, objectReader: ObjectReader): T {
     try {
       @Suppress("UNCHECKED_CAST")
-      if (type.isTypeOrSubTypeOf(Unit::class.java) || type.isTypeOrSubTypeOf(Void::class.java)) return Unit as T
-      return getObjectMapper(gqlNaming).readValue(reader, type)
+      if (objectReader.valueType.let { it.isTypeOrSubTypeOf(Unit::class.java) || it.isTypeOrSubTypeOf(Void::class.java) }) return Unit as T
+      return objectReader.readValue(reader)
     }
     catch (e: JsonProcessingException) {
       throw GiteeJsonException("Can't parse GitHub response", e)
@@ -85,15 +169,63 @@ object GiteeApiContentHelper {
   @Throws(GiteeJsonException::class)
   fun toJson(content: Any, gqlNaming: Boolean = false): String {
     try {
-      return getObjectMapper(gqlNaming).writeValueAsString(content)
+      return getWriter(gqlNaming, content.javaClass).writeValueAsString(content)
     }
     catch (e: JsonProcessingException) {
       throw GiteeJsonException("Can't serialize GitHub request body", e)
     }
   }
 
+  internal fun toJsonTree(content: Any, gqlNaming: Boolean = false): JsonNode = getObjectMapper(gqlNaming).valueToTree(content)
+
   private fun getObjectMapper(gqlNaming: Boolean = false): ObjectMapper = if (!gqlNaming) jackson else gqlJackson
 
+  private fun getReader(gqlNaming: Boolean, clazz: Class<*>, vararg parameters: Class<*>): ObjectReader =
+    readers.computeIfAbsent(ReaderKey(gqlNaming, clazz, parameters.toList())) {
+      val mapper = getObjectMapper(gqlNaming)
+      val type = if (parameters.isEmpty()) mapper.typeFactory.constructType(clazz)
+      else mapper.typeFactory.constructParametricType(clazz, *parameters)
+      mapper.readerFor(type)
+    }
+
+  private fun getWriter(gqlNaming: Boolean, clazz: Class<*>): ObjectWriter =
+    writers.computeIfAbsent(WriterKey(gqlNaming, clazz)) {
+      getObjectMapper(gqlNaming).writerFor(clazz)
+    }
+
+  private data class ReaderKey(val gqlNaming: Boolean, val clazz: Class<*>, val parameters: List<Class<*>>)
+
+  private data class WriterKey(val gqlNaming: Boolean, val clazz: Class<*>)
+
+  /**
+   * Thread-safe replacement of the shared [java.text.SimpleDateFormat] for ISO-8601 dates with an offset.
+   * Dates are written in the default time zone as before.
+   */
+  private object JavaTimeDateModule : SimpleModule("GiteeJavaTimeDateModule") {
+    private val outputFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX")
+
+    init {
+      addDeserializer(Date::class.java, object : StdScalarDeserializer<Date>(Date::class.java) {
+        override fun deserialize(parser: JsonParser, context: DeserializationContext): Date? {
+          if (parser.currentToken == JsonToken.VALUE_NUMBER_INT) return Date(parser.longValue)
+          val text = parser.valueAsString?.trim()
+          if (text.isNullOrEmpty()) return null
+          return try {
+            Date.from(OffsetDateTime.parse(text, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant())
+          }
+          catch (e: DateTimeParseException) {
+            context.handleWeirdStringValue(Date::class.java, text, e.message) as Date?
+          }
+        }
+      })
+      addSerializer(Date::class.java, object : StdSerializer<Date>(Date::class.java) {
+        override fun serialize(value: Date, generator: JsonGenerator, provider: SerializerProvider) {
+          generator.writeString(outputFormatter.format(value.toInstant().atZone(provider.timeZone.toZoneId())))
+        }
+      })
+    }
+  }
+
   @JvmStatic
   @Throws(IOException::class)
   fun loadImage(stream: InputStream): BufferedImage {
@@ -0,0 +1,137 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects GraphQL queries sent to the same endpoint within a short window and sends them as one [GEGQLBatchRequest].
+ * Every caller still gets the result or the error of its own query.
+ * When the batch fails as a whole or reports an error which can't be attributed to a single query, the queries are sent one by one.
+ */
+internal class GiteeApiGQLBatchingRequestExecutor(private val delegate: GiteeApiRequestExecutor,
+                                                  private val batchWindow: Long)
+  : GiteeApiRequestExecutor() {
+
+  // url -> batch which is not sent yet
+  private val pending = mutableMapOf<String, PendingBatch>()
+
+  override fun addListener(disposable: Disposable, listener: () -> Unit) = delegate.addListener(disposable, listener)
+
+  @Suppress("UNCHECKED_CAST")
+  @Throws(IOException::class, ProcessCanceledException::class)
+  override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
+    if (!canBatch(request)) return delegate.execute(indicator, request)
+    indicator.checkCanceled()
+    // cancelling the result of a caller drops its query, the batch is cancelled when every caller is gone
+    return awaitWithCheckCanceled(enqueue(request as GiteeApiRequest.Post.GQLQuery<T>, indicator), indicator)
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  override fun <T> executeAsync(indicator: ProgressIndicator, request: GiteeApiRequest<T>): CompletableFuture<T> {
+    if (!canBatch(request)) return delegate.executeAsync(indicator, request)
+    return cancelWithIndicator(enqueue(request as GiteeApiRequest.Post.GQLQuery<T>, indicator), indicator)
+  }
+
+  private fun canBatch(request: GiteeApiRequest<*>) = request is GiteeApiRequest.Post.GQLQuery<*> && GEGQLBatchRequest.canBatch(request)
+
+  private fun <T> enqueue(request: GiteeApiRequest.Post.GQLQuery<T>, indicator: ProgressIndicator): CompletableFuture<T> {
+    val part = Part(request, indicator)
+    val full = synchronized(pending) {
+      val batch = pending.getOrPut(request.url) {
+        PendingBatch(request.url).also {
+          AppExecutorUtil.getAppScheduledExecutorService().schedule({ send(it) }, batchWindow, TimeUnit.MILLISECONDS)
+        }
+      }
+      batch.parts.add(part)
+      part.batch = batch
+      batch.takeIf { it.parts.size >= MAX_BATCH_SIZE }
+    }
+    part.result.whenComplete { _, _ -> if (part.result.isCancelled) cancel(part) }
+    full?.let(::send)
+    return part.result
+  }
+
+  private fun cancel(part: Part<*>) {
+    val batch = part.batch
+    synchronized(pending) {
+      if (pending[batch.url] === batch) {
+        batch.parts.remove(part)
+        if (batch.parts.isEmpty()) pending.remove(batch.url)
+        return
+      }
+    }
+    if (batch.parts.all { it.result.isCancelled }) batch.indicator.cancel()
+  }
+
+  private fun send(batch: PendingBatch) {
+    synchronized(pending) {
+      if (!pending.remove(batch.url, batch)) return
+    }
+    val parts = batch.parts
+    if (parts.size == 1) {
+      parts.single().sendAlone()
+      return
+    }
+
+    LOG.debug("Request: ${batch.url} : Sending ${parts.size} queries in one batch")
+    val batchRequest = GEGQLBatchRequest(batch.url, parts.map { it.request }).withPriority(parts.minOf { it.request.priority })
+    delegate.executeAsync(batch.indicator, batchRequest).whenComplete { responses, error ->
+      if (error != null || responses == null) {
+        LOG.debug("Request: ${batch.url} : Batch failed, sending ${parts.size} queries one by one", error)
+        parts.forEach { it.sendAlone() }
+      }
+      else {
+        parts.forEachIndexed { index, part -> part.complete(responses[index]) }
+      }
+    }
+  }
+
+  private inner class Part<T>(val request: GiteeApiRequest.Post.GQLQuery<T>, private val indicator: ProgressIndicator) {
+    val result = CompletableFuture<T>()
+    lateinit var batch: PendingBatch
+
+    fun sendAlone() {
+      if (result.isDone) return
+      delegate.executeAsync(indicator, request).whenComplete { value, error ->
+        if (error != null) result.completeExceptionally(if (error is CompletionException) error.cause ?: error else error)
+        else result.complete(value)
+      }
+    }
+
+    fun complete(response: GiteeApiResponse) {
+      try {
+        result.complete(handleErrors(request) { request.extractResult(response) })
+      }
+      catch (e: Throwable) {
+        result.completeExceptionally(e)
+      }
+    }
+  }
+
+  private class PendingBatch(val url: String) {
+    val parts = mutableListOf<Part<*>>()
+    // cancelled when every part is cancelled after the batch is sent
+    val indicator = EmptyProgressIndicator()
+  }
+
+  companion object {
+    private val LOG = logger<GiteeApiGQLBatchingRequestExecutor>()
+
+    private const val BATCH_WINDOW = 10L
+    private const val MAX_BATCH_SIZE = 10
+
+    fun wrapIfEnabled(executor: GiteeApiRequestExecutor): GiteeApiRequestExecutor =
+      if (Registry.`is`("gitee.api.gql.batching", false)) GiteeApiGQLBatchingRequestExecutor(executor, BATCH_WINDOW)
+      else executor
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.execution.process.ProcessIOExecutorService
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.util.ThrowableConvertor
+import com.intellij.util.io.HttpSecurityUtil
+import cn.osc.gitee.util.GiteeSettings
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.Reader
+import java.net.Authenticator
+import java.net.ProxySelector
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpHeaders
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.GZIPInputStream
+
+/**
+ * Executes API requests over a shared [HttpClient], which keeps connections alive between requests
+ * and multiplexes them over HTTP/2 when the server supports it.
+ * Proxy settings, timeouts and error mapping are the same as for the [HttpURLConnection][java.net.HttpURLConnection] based executors.
+ */
+internal class GiteeApiHttpClientRequestExecutor(private val githubSettings: GiteeSettings,
+                                                 private val tokenSupplier: (() -> String)?,
+                                                 private val useProxy: Boolean,
+                                                 private val responseCache: GiteeApiResponseCache? = null)
+  : GiteeApiRequestExecutor() {
+
+  override fun addListener(disposable: Disposable, listener: () -> Unit) {
+    if (tokenSupplier is GiteeApiRequestExecutor.MutableTokenSupplier) {
+      tokenSupplier.addListener(disposable, listener)
+    }
+  }
+
+  @Throws(IOException::class, ProcessCanceledException::class)
+  override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
+    checkBreaker()
+    indicator.checkCanceled()
+    val cached = responseCache?.find(request, tokenSupplier)
+    val httpRequest = createHttpRequest(request, cached)
+    return handleErrors(request) {
+      LOG.debug("Request: ${httpRequest.method()} ${request.url} : Connecting")
+      val response = awaitWithCheckCanceled(getClient().sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream()), indicator)
+      LOG.debug("Request: ${httpRequest.method()} ${request.url} : Connected")
+      processResponse(request, response.statusCode(), response.headers(), response.body(), cached, indicator)
+    }
+  }
+
+  override fun <T> executeAsync(indicator: ProgressIndicator, request: GiteeApiRequest<T>): CompletableFuture<T> {
+    checkBreaker()
+    val cachedFuture: CompletableFuture<GiteeApiResponseCache.Entry?> =
+      if (responseCache == null) CompletableFuture.completedFuture(null)
+      else CompletableFuture.supplyAsync({ responseCache.find(request, tokenSupplier) }, ProcessIOExecutorService.INSTANCE)
+
+    // the response is sent by a dependent stage, so it has to be aborted separately from the returned future
+    val responseFuture = AtomicReference<CompletableFuture<*>?>()
+    val result = cachedFuture.thenCompose { cached ->
+      indicator.checkCanceled()
+      val httpRequest = createHttpRequest(request, cached)
+      LOG.debug("Request: ${httpRequest.method()} ${request.url} : Sending")
+      val sent = getClient().sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+      if (!responseFuture.compareAndSet(null, sent)) sent.cancel(true)
+      sent.thenApplyAsync({ response ->
+        handleErrors(request) {
+          processResponse(request, response.statusCode(), response.headers(), response.body(), cached, indicator)
+        }
+      }, ProcessIOExecutorService.INSTANCE)
+    }
+    result.whenComplete { _, _ ->
+      if (result.isCancelled) {
+        cachedFuture.cancel(true)
+        responseFuture.getAndSet(ABORTED)?.cancel(true)
+      }
+    }
+    return cancelWithIndicator(result, indicator)
+  }
+
+  private fun createHttpRequest(request: GiteeApiRequest<*>, cached: GiteeApiResponseCache.Entry?): HttpRequest {
+    val builder = HttpRequest.newBuilder(URI.create(request.url))
+      // same timeout as for the connection based executors, there is no separate one in the settings
+      .timeout(Duration.ofMillis(githubSettings.connectionTimeout.toLong()))
+      .header("User-Agent", USER_AGENT)
+      .header("Accept-Encoding", "gzip")
+    request.acceptMimeType?.let { builder.header("Accept", it) }
+    for ((name, value) in request.additionalHeaders) {
+      // computed by the client itself and rejected when set explicitly
+      if (RESTRICTED_HEADERS.any { it.equals(name, true) }) continue
+      builder.header(name, value)
+    }
+    tokenSupplier?.let { builder.header(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "Bearer ${it()}") }
+    cached?.conditionalHeaders?.forEach(builder::header)
+
+    when (request) {
+      is GiteeApiRequest.Get -> builder.GET()
+      is GiteeApiRequest.Head -> builder.method("HEAD", HttpRequest.BodyPublishers.noBody())
+      is GiteeApiRequest.WithBody -> {
+        val method = when (request) {
+          is GiteeApiRequest.Patch -> "PATCH"
+          is GiteeApiRequest.Post -> "POST"
+          is GiteeApiRequest.Put -> "PUT"
+          is GiteeApiRequest.Delete -> "DELETE"
+          else -> throw UnsupportedOperationException("${request.javaClass} is not supported")
+        }
+        val body = request.body
+        if (body != null) builder.header("Content-Type", request.bodyMimeType)
+        builder.method(method, body?.let { HttpRequest.BodyPublishers.ofString(it) } ?: HttpRequest.BodyPublishers.noBody())
+      }
+    }
+    return builder.build()
+  }
+
+  @Throws(IOException::class)
+  private fun <T> processResponse(request: GiteeApiRequest<T>,
+                                  statusCode: Int,
+                                  headers: HttpHeaders,
+                                  rawBody: InputStream,
+                                  cached: GiteeApiResponseCache.Entry?,
+                                  indicator: ProgressIndicator): T {
+    val body = if (headers.firstValue("Content-Encoding").orElse(null) == "gzip") GZIPInputStream(rawBody) else rawBody
+    body.use {
+      updateRateLimits(request, tokenSupplier) { headers.firstValue(it).orElse(null) }
+      if (statusCode >= 400) {
+        val statusLine = createStatusLine(statusCode, null)
+        val errorText = InputStreamReader(body, Charsets.UTF_8).readText()
+        LOG.debug("Request: ${request.url} : Error ${statusLine} body:\n${errorText}")
+        throw createStatusCodeException(statusCode, statusLine, headers.firstValue("Content-Type").orElse(null), errorText) {
+          request.url
+        }
+      }
+      // let's assume it's not ghe if header is missing
+      headers.firstValue(GEEServerVersionChecker.ENTERPRISE_VERSION_HEADER).orElse(null)?.let(GEEServerVersionChecker::checkVersionSupported)
+      indicator.checkCanceled()
+
+      val response = responseCache?.createResponse(request, tokenSupplier, statusCode, headers.map(), cached) { body }
+                     ?: StreamResponse(headers, body)
+      val result = request.extractResult(response)
+      LOG.debug("Request: ${request.url} : Result extracted")
+      return result
+    }
+  }
+
+  private class StreamResponse(private val headers: HttpHeaders, private val body: InputStream) : GiteeApiResponse {
+    override fun findHeader(headerName: String): String? = headers.firstValue(headerName).orElse(null)
+
+    override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T =
+      InputStreamReader(body, GiteeApiRequestExecutor.getCharset(headers.firstValue("Content-Type").orElse(null))).use {
+        converter.convert(it)
+      }
+
+    override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T = body.use {
+      converter.convert(it)
+    }
+  }
+
+  private fun getClient(): HttpClient = clients.computeIfAbsent(ClientKey(useProxy, githubSettings.connectionTimeout)) { key ->
+    HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_2)
+      .followRedirects(HttpClient.Redirect.NORMAL)
+      .connectTimeout(Duration.ofMillis(key.connectionTimeout.toLong()))
+      .executor(ProcessIOExecutorService.INSTANCE)
+      .apply {
+        if (key.useProxy) {
+          proxy(ProxySelector.getDefault())
+          Authenticator.getDefault()?.let { authenticator(it) }
+        }
+        else {
+          proxy(HttpClient.Builder.NO_PROXY)
+        }
+      }
+      .build()
+  }
+
+  private data class ClientKey(val useProxy: Boolean, val connectionTimeout: Int)
+
+  companion object {
+    private val LOG = logger<GiteeApiHttpClientRequestExecutor>()
+
+    private val ABORTED = CompletableFuture.completedFuture(null)
+    private val RESTRICTED_HEADERS = listOf("Content-Length", "Connection", "Host", "Expect", "Upgrade")
+
+    // shared between executors so that connections are pooled per proxy/timeout configuration
+    private val clients = ConcurrentHashMap<ClientKey, HttpClient>()
+  }
+}
@@ -1,7 +1,9 @@
 // Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package cn.osc.gitee.api
 
-import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
 import com.intellij.collaboration.api.dto.GraphQLRequestDTO
 import com.intellij.collaboration.api.dto.GraphQLResponseDTO
 import com.intellij.collaboration.api.util.LinkHttpHeaderValue
@@ -19,12 +21,21 @@ import java.io.IOException
  */
 sealed class GiteeApiRequest<out T>(val url: String) {
   var operationName: String? = null
+  var priority: GiteeApiRequestPriority = GiteeApiRequestPriority.INTERACTIVE
+    private set
   abstract val acceptMimeType: String?
 
   protected val headers = mutableMapOf<String, String>()
   val additionalHeaders: Map<String, String>
     get() = headers
 
+  /**
+   * Identifies the shape of the result, so that concurrent identical requests can share one call and one parsed result.
+   * Null when the result should not be shared, e.g. for non-idempotent requests or requests with side effects during extraction.
+   */
+  internal open val resultKey: Any?
+    get() = null
+
   @Throws(IOException::class)
   abstract fun extractResult(response: GiteeApiResponse): T
 
@@ -33,6 +44,11 @@ sealed class GiteeApiRequest<out T>(val url: String) {
     return this
   }
 
+  fun withPriority(priority: GiteeApiRequestPriority): GiteeApiRequest<T> {
+    this.priority = priority
+    return this
+  }
+
   abstract class Get<T> @JvmOverloads constructor(url: String,
                                                   override val acceptMimeType: String? = null) : GiteeApiRequest<T>(url) {
     abstract class Optional<T> @JvmOverloads constructor(url: String,
@@ -45,6 +61,9 @@ sealed class GiteeApiRequest<out T>(val url: String) {
       open class Json<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = GiteeApiContentHelper.V3_JSON_MIME_TYPE)
         : Optional<T>(url, acceptMimeType) {
 
+        override val resultKey: Any
+          get() = listOf(javaClass, clazz)
+
         override fun extractResult(response: GiteeApiResponse): T = parseJsonObject(response, clazz)
       }
     }
@@ -63,22 +82,50 @@ sealed class GiteeApiRequest<out T>(val url: String) {
     open class Json<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = GiteeApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<T>(url, acceptMimeType) {
 
+      override val resultKey: Any
+        get() = listOf(javaClass, clazz)
+
       override fun extractResult(response: GiteeApiResponse): T = parseJsonObject(response, clazz)
     }
 
     open class JsonList<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = GiteeApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<List<T>>(url, acceptMimeType) {
 
+      override val resultKey: Any
+        get() = listOf(javaClass, clazz)
+
       override fun extractResult(response: GiteeApiResponse): List<T> = parseJsonList(response, clazz)
     }
 
     open class JsonPage<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = GiteeApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<GiteeResponsePage<T>>(url, acceptMimeType) {
 
+      override val resultKey: Any
+        get() = listOf(javaClass, clazz)
+
       override fun extractResult(response: GiteeApiResponse): GiteeResponsePage<T> {
         val list = parseJsonList(response, clazz)
+        return createPage(response, list)
+      }
+
+      /**
+       * Copy of this request which passes the items to [itemConsumer] as soon as they are decoded.
+       * Resulting page holds only the navigation links.
+       */
+      fun streaming(itemConsumer: (T) -> Unit): Get<GiteeResponsePage<T>> = object : Get<GiteeResponsePage<T>>(url, acceptMimeType) {
+        override fun extractResult(response: GiteeApiResponse): GiteeResponsePage<T> {
+          parseJsonListIncrementally(response, clazz, itemConsumer)
+          return createPage(response, emptyList())
+        }
+      }.also {
+        it.operationName = operationName
+        it.withPriority(priority)
+      }
+
+      private fun createPage(response: GiteeApiResponse, list: List<T>): GiteeResponsePage<T> {
         val linkHeader = response.findHeader(LinkHttpHeaderValue.HEADER_NAME)?.let(LinkHttpHeaderValue::parse)
-        return GiteeResponsePage(list, linkHeader)
+        val totalPages = response.findHeader(GiteeResponsePage.TOTAL_PAGES_HEADER)?.toIntOrNull()
+        return GiteeResponsePage(list, linkHeader, totalPages)
       }
     }
 
@@ -87,6 +134,9 @@ sealed class GiteeApiRequest<out T>(val url: String) {
                                  acceptMimeType: String? = GiteeApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<GiteeResponsePage<T>>(url, acceptMimeType) {
 
+      override val resultKey: Any
+        get() = listOf(javaClass, clazz)
+
       override fun extractResult(response: GiteeApiResponse): GiteeResponsePage<T> {
         val page = parseJsonSearchPage(response, clazz)
         val linkHeader = response.findHeader(LinkHttpHeaderValue.HEADER_NAME)?.let(LinkHttpHeaderValue::parse)
@@ -122,8 +172,8 @@ sealed class GiteeApiRequest<out T>(val url: String) {
     }
 
     abstract class GQLQuery<out T>(url: String,
-                                   private val queryName: String,
-                                   private val variablesObject: Any)
+                                   internal val queryName: String,
+                                   internal val variablesObject: Any)
       : Post<T>(GiteeApiContentHelper.JSON_MIME_TYPE, url) {
 
       override val body: String
@@ -133,6 +183,12 @@ sealed class GiteeApiRequest<out T>(val url: String) {
           return GiteeApiContentHelper.toJson(request, true)
         }
 
+      /**
+       * Mutations are never shared between callers
+       */
+      internal val isQuery: Boolean
+        get() = !GEGQLQueryLoader.loadQuery(queryName).trimStart().startsWith("mutation")
+
       protected fun throwException(errors: List<GEGQLError>): Nothing {
         if (errors.any { it.type.equals("INSUFFICIENT_SCOPES", true) })
           throw GiteeAuthenticationException("Access token has not been granted the required scopes.")
@@ -146,6 +202,9 @@ sealed class GiteeApiRequest<out T>(val url: String) {
                           variablesObject: Any,
                           private val clazz: Class<T>)
         : GQLQuery<T>(url, requestFilePath, variablesObject) {
+        override val resultKey: Any?
+          get() = if (isQuery) listOf(javaClass, clazz) else null
+
         override fun extractResult(response: GiteeApiResponse): T {
           val result: GraphQLResponseDTO<out T, GEGQLError> = parseGQLResponse(response, clazz)
           val data = result.data
@@ -164,6 +223,9 @@ sealed class GiteeApiRequest<out T>(val url: String) {
                                          private vararg val pathFromData: String)
         : GQLQuery<T>(url, requestFilePath, variablesObject) {
 
+        override val resultKey: Any?
+          get() = if (isQuery) listOf(javaClass, clazz, pathFromData.toList()) else null
+
         override fun extractResult(response: GiteeApiResponse): T {
           return parseResponse(response, clazz, pathFromData)
                  ?: throw GiteeJsonException("Non-nullable entity is null or entity path is invalid")
@@ -176,27 +238,68 @@ sealed class GiteeApiRequest<out T>(val url: String) {
                                        private val clazz: Class<T>,
                                        private vararg val pathFromData: String)
         : GQLQuery<T?>(url, requestFilePath, variablesObject) {
+        override val resultKey: Any?
+          get() = if (isQuery) listOf(javaClass, clazz, pathFromData.toList()) else null
+
         override fun extractResult(response: GiteeApiResponse): T? {
           return parseResponse(response, clazz, pathFromData)
         }
       }
 
+      /**
+       * Reads the response with a streaming parser, skipping everything outside of [pathFromData]
+       * and binding the value at that path directly to [clazz] without building an intermediate tree
+       */
       internal fun <T> parseResponse(response: GiteeApiResponse,
                                      clazz: Class<T>,
                                      pathFromData: Array<out String>): T? {
-        val result: GraphQLResponseDTO<out JsonNode, GEGQLError> = parseGQLResponse(response, JsonNode::class.java)
-        val data = result.data
-        if (data != null && !data.isNull) {
-          var node: JsonNode = data
-          for (path in pathFromData) {
-            node = node[path] ?: break
+        val result = response.readBody(ThrowableConvertor { reader ->
+          try {
+            GiteeApiContentHelper.createParser(reader, true).use { parser ->
+              if (parser.nextToken() != JsonToken.START_OBJECT) throw GiteeJsonException("Can't parse GitHub response: object expected")
+              var data: T? = null
+              var errors: List<GEGQLError>? = null
+              while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val fieldName = parser.currentName
+                parser.nextToken()
+                when (fieldName) {
+                  "data" -> data = readValueAtPath(parser, clazz, pathFromData, 0)
+                  "errors" -> errors = GiteeApiContentHelper.readJsonList(parser, GEGQLError::class.java, true)
+                  else -> parser.skipChildren()
+                }
+              }
+              GQLResult(data, errors)
+            }
           }
-          if (!node.isNull) return GiteeApiContentHelper.fromJson(node.toString(), clazz, true)
-        }
+          catch (e: JsonProcessingException) {
+            throw GiteeJsonException("Can't parse GitHub response", e)
+          }
+        })
+        if (result.data != null) return result.data
         val errors = result.errors
         if (errors == null) return null
         else throwException(errors)
       }
+
+      private fun <T> readValueAtPath(parser: JsonParser, clazz: Class<T>, path: Array<out String>, pathIndex: Int): T? {
+        if (parser.currentToken == JsonToken.VALUE_NULL) return null
+        if (pathIndex == path.size) return GiteeApiContentHelper.readJsonObject(parser, clazz, true)
+        if (parser.currentToken != JsonToken.START_OBJECT) {
+          parser.skipChildren()
+          return null
+        }
+
+        var value: T? = null
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          val fieldName = parser.currentName
+          parser.nextToken()
+          if (fieldName == path[pathIndex]) value = readValueAtPath(parser, clazz, path, pathIndex + 1)
+          else parser.skipChildren()
+        }
+        return value
+      }
+
+      private class GQLResult<T>(val data: T?, val errors: List<GEGQLError>?)
     }
   }
 
@@ -276,6 +379,10 @@ sealed class GiteeApiRequest<out T>(val url: String) {
       return response.readBody(ThrowableConvertor { GiteeApiContentHelper.readJsonList(it, clazz) })
     }
 
+    private fun <T> parseJsonListIncrementally(response: GiteeApiResponse, clazz: Class<T>, itemConsumer: (T) -> Unit) {
+      response.readBody(ThrowableConvertor { GiteeApiContentHelper.readJsonListIncrementally(it, clazz, itemConsumer = itemConsumer) })
+    }
+
     private fun <T> parseJsonSearchPage(response: GiteeApiResponse, clazz: Class<T>): GiteeSearchResult<T> {
       return response.readBody(ThrowableConvertor {
         @Suppress("UNCHECKED_CAST")
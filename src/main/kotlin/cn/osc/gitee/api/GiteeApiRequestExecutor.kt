@@ -2,6 +2,7 @@
 package cn.osc.gitee.api
 
 import com.intellij.collaboration.ui.SimpleEventListener
+import com.intellij.execution.process.ProcessIOExecutorService
 import com.intellij.openapi.Disposable
 import com.intellij.openapi.application.ModalityState
 import com.intellij.openapi.application.runInEdt
@@ -10,8 +11,10 @@ import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.progress.EmptyProgressIndicator
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.util.EventDispatcher
 import com.intellij.util.ThrowableConvertor
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.concurrency.annotations.RequiresBackgroundThread
 import com.intellij.util.io.HttpRequests
 import com.intellij.util.io.HttpSecurityUtil
@@ -25,7 +28,15 @@ import java.io.InputStream
 import java.io.InputStreamReader
 import java.io.Reader
 import java.net.HttpURLConnection
+import java.net.URLConnection
+import java.nio.charset.Charset
+import java.security.MessageDigest
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.zip.GZIPInputStream
 
 /**
@@ -44,24 +55,29 @@ sealed class GiteeApiRequestExecutor {
   @Throws(IOException::class, ProcessCanceledException::class)
   fun <T> execute(request: GiteeApiRequest<T>): T = execute(EmptyProgressIndicator(), request)
 
+  /**
+   * Executes the request without blocking the caller.
+   * Transports without native non-blocking support run the blocking call on a pooled IO thread.
+   */
+  open fun <T> executeAsync(indicator: ProgressIndicator, request: GiteeApiRequest<T>): CompletableFuture<T> =
+    CompletableFuture.supplyAsync({ execute(indicator, request) }, ProcessIOExecutorService.INSTANCE)
+
+  fun <T> executeAsync(request: GiteeApiRequest<T>): CompletableFuture<T> = executeAsync(EmptyProgressIndicator(), request)
+
   internal class WithTokenAuth(githubSettings: GiteeSettings,
-                               private val tokenSupplier: () -> String,
-                               private val useProxy: Boolean) : Base(githubSettings) {
+                               override val tokenSupplier: () -> String,
+                               private val useProxy: Boolean,
+                               responseCache: GiteeApiResponseCache? = null) : Base(githubSettings, responseCache) {
 
     @Throws(IOException::class, ProcessCanceledException::class)
     override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
-      check(!service<GERequestExecutorBreaker>().isRequestsShouldFail) {
-        "Request failure was triggered by user action. This a pretty long description of this failure that should resemble some long error which can go out of bounds."
-      }
+      checkBreaker()
 
       indicator.checkCanceled()
-      return createRequestBuilder(request)
-        .tuner { connection ->
-          request.additionalHeaders.forEach(connection::addRequestProperty)
-          connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "Bearer ${tokenSupplier()}")
-        }
-        .useProxy(useProxy)
-        .execute(request, indicator)
+      return execute(request, indicator, useProxy) { connection ->
+        request.additionalHeaders.forEach(connection::addRequestProperty)
+        connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "Bearer ${tokenSupplier()}")
+      }
     }
 
     override fun addListener(disposable: Disposable, listener: () -> Unit) {
@@ -71,24 +87,43 @@ sealed class GiteeApiRequestExecutor {
     }
   }
 
-  internal class NoAuth(githubSettings: GiteeSettings) : Base(githubSettings) {
+  internal class NoAuth(githubSettings: GiteeSettings,
+                        responseCache: GiteeApiResponseCache? = null) : Base(githubSettings, responseCache) {
     override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
       indicator.checkCanceled()
+      return execute(request, indicator, true) { connection ->
+        request.additionalHeaders.forEach(connection::addRequestProperty)
+      }
+    }
+  }
+
+  abstract class Base(private val githubSettings: GiteeSettings,
+                      private val responseCache: GiteeApiResponseCache? = null) : GiteeApiRequestExecutor() {
+
+    protected open val tokenSupplier: (() -> String)?
+      get() = null
+
+    protected fun <T> execute(request: GiteeApiRequest<T>,
+                              indicator: ProgressIndicator,
+                              useProxy: Boolean,
+                              tuner: (URLConnection) -> Unit): T {
+      val cached = responseCache?.find(request, tokenSupplier)
       return createRequestBuilder(request)
         .tuner { connection ->
-          request.additionalHeaders.forEach(connection::addRequestProperty)
+          tuner(connection)
+          cached?.conditionalHeaders?.forEach(connection::setRequestProperty)
         }
-        .useProxy(true)
-        .execute(request, indicator)
+        .useProxy(useProxy)
+        .execute(request, cached, indicator)
     }
-  }
 
-  abstract class Base(private val githubSettings: GiteeSettings) : GiteeApiRequestExecutor() {
-    protected fun <T> RequestBuilder.execute(request: GiteeApiRequest<T>, indicator: ProgressIndicator): T {
+    private fun <T> RequestBuilder.execute(request: GiteeApiRequest<T>,
+                                           cached: GiteeApiResponseCache.Entry?,
+                                           indicator: ProgressIndicator): T {
       indicator.checkCanceled()
-      try {
+      return handleErrors(request) {
         LOG.debug("Request: ${request.url} ${request.operationName} : Connecting")
-        return connect {
+        connect {
           val connection = it.connection as HttpURLConnection
           if (request is GiteeApiRequest.WithBody) {
             LOG.debug("Request: ${connection.requestMethod} ${connection.url} with body:\n${request.body} : Connected")
@@ -97,26 +132,15 @@ sealed class GiteeApiRequestExecutor {
           else {
             LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Connected")
           }
+          updateRateLimits(request, tokenSupplier, connection::getHeaderField)
           checkResponseCode(connection)
           checkServerVersion(connection)
           indicator.checkCanceled()
-          val result = request.extractResult(createResponse(it, indicator))
+          val result = request.extractResult(createResponse(it, request, cached, indicator))
           LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Result extracted")
           result
         }
       }
-      catch (e: GiteeStatusCodeException) {
-        @Suppress("UNCHECKED_CAST")
-        if (request is GiteeApiRequest.Get.Optional<*> && e.statusCode == HttpURLConnection.HTTP_NOT_FOUND) return null as T else throw e
-      }
-      catch (e: GiteeConfusingException) {
-        if (request.operationName != null) {
-          val errorText = "Can't ${request.operationName}"
-          e.setDetails(errorText)
-          LOG.debug(errorText, e)
-        }
-        throw e
-      }
     }
 
     protected fun createRequestBuilder(request: GiteeApiRequest<*>): RequestBuilder {
@@ -133,7 +157,7 @@ sealed class GiteeApiRequestExecutor {
         else -> throw UnsupportedOperationException("${request.javaClass} is not supported")
       }
         .connectTimeout(githubSettings.connectionTimeout)
-        .userAgent("Intellij IDEA Gitee Plugin")
+        .userAgent(USER_AGENT)
         .throwStatusCodeException(false)
         .forceHttps(false)
         .accept(request.acceptMimeType)
@@ -142,31 +166,12 @@ sealed class GiteeApiRequestExecutor {
     @Throws(IOException::class)
     private fun checkResponseCode(connection: HttpURLConnection) {
       if (connection.responseCode < 400) return
-      val statusLine = "${connection.responseCode} ${connection.responseMessage}"
+      val statusLine = createStatusLine(connection.responseCode, connection.responseMessage)
       val errorText = getErrorText(connection)
       LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Error ${statusLine} body:\n${errorText}")
 
-      val jsonError = errorText?.let { getJsonError(connection, it) }
-      jsonError ?: LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Unable to parse JSON error")
-
-      throw when (connection.responseCode) {
-        HttpURLConnection.HTTP_UNAUTHORIZED,
-        HttpURLConnection.HTTP_PAYMENT_REQUIRED,
-        HttpURLConnection.HTTP_FORBIDDEN -> {
-          if (jsonError?.containsReasonMessage("API rate limit exceeded") == true) {
-            GiteeRateLimitExceededException(jsonError.presentableError)
-          }
-          else GiteeAuthenticationException("Request response: " + (jsonError?.presentableError ?: errorText ?: statusLine))
-        }
-
-        else -> {
-          if (jsonError != null) {
-            GiteeStatusCodeException("$statusLine - ${jsonError.presentableError}", jsonError, connection.responseCode)
-          }
-          else {
-            GiteeStatusCodeException("$statusLine - ${errorText}", connection.responseCode)
-          }
-        }
+      throw createStatusCodeException(connection.responseCode, statusLine, connection.contentType, errorText) {
+        "${connection.requestMethod} ${connection.url}"
       }
     }
 
@@ -182,17 +187,14 @@ sealed class GiteeApiRequestExecutor {
       return InputStreamReader(stream, Charsets.UTF_8).use { it.readText() }
     }
 
-    private fun getJsonError(connection: HttpURLConnection, errorText: String): GiteeErrorMessage? {
-      if (!connection.contentType.startsWith(GiteeApiContentHelper.JSON_MIME_TYPE)) return null
-      return try {
-        return GiteeApiContentHelper.fromJson(errorText)
-      }
-      catch (jse: GiteeJsonException) {
-        null
-      }
-    }
-
-    private fun createResponse(request: HttpRequests.Request, indicator: ProgressIndicator): GiteeApiResponse {
+    private fun createResponse(request: HttpRequests.Request,
+                               apiRequest: GiteeApiRequest<*>,
+                               cached: GiteeApiResponseCache.Entry?,
+                               indicator: ProgressIndicator): GiteeApiResponse {
+      val connection = request.connection as HttpURLConnection
+      responseCache?.createResponse(apiRequest, tokenSupplier, connection.responseCode, connection.headerFields, cached) {
+        request.inputStream
+      }?.let { return it }
       return object : GiteeApiResponse {
         override fun findHeader(headerName: String): String? = request.connection.getHeaderField(headerName)
 
@@ -207,6 +209,26 @@ sealed class GiteeApiRequestExecutor {
     }
   }
 
+  /**
+   * Underlying HTTP implementation of an executor
+   */
+  enum class Transport {
+    /**
+     * [HttpRequests] over a fresh [HttpURLConnection] per request
+     */
+    URL_CONNECTION,
+
+    /**
+     * Shared [java.net.http.HttpClient] with connection reuse, HTTP/2 and non-blocking [executeAsync]
+     */
+    HTTP_CLIENT;
+
+    companion object {
+      @JvmStatic
+      fun getDefault(): Transport = if (Registry.`is`("gitee.api.http.client", false)) HTTP_CLIENT else URL_CONNECTION
+    }
+  }
+
   class Factory {
     fun create(token: String): GiteeApiRequestExecutor = create(token, true)
 
@@ -215,9 +237,35 @@ sealed class GiteeApiRequestExecutor {
     fun create(tokenSupplier: () -> String): GiteeApiRequestExecutor = create(true, tokenSupplier)
 
     fun create(useProxy: Boolean = true, tokenSupplier: () -> String): GiteeApiRequestExecutor =
-      WithTokenAuth(GiteeSettings.getInstance(), tokenSupplier, useProxy)
+      create(Transport.getDefault(), useProxy, tokenSupplier)
+
+    fun create(transport: Transport, useProxy: Boolean = true, tokenSupplier: () -> String): GiteeApiRequestExecutor {
+      val executor = when (transport) {
+        Transport.URL_CONNECTION ->
+          WithTokenAuth(GiteeSettings.getInstance(), tokenSupplier, useProxy, GiteeApiResponseCache.getInstanceIfEnabled())
+        Transport.HTTP_CLIENT ->
+          GiteeApiHttpClientRequestExecutor(GiteeSettings.getInstance(), tokenSupplier, useProxy,
+                                            GiteeApiResponseCache.getInstanceIfEnabled())
+      }
+      return decorate(executor, tokenSupplier)
+    }
+
+    fun create(): GiteeApiRequestExecutor = create(Transport.getDefault())
+
+    fun create(transport: Transport): GiteeApiRequestExecutor {
+      val executor = when (transport) {
+        Transport.URL_CONNECTION -> NoAuth(GiteeSettings.getInstance(), GiteeApiResponseCache.getInstanceIfEnabled())
+        Transport.HTTP_CLIENT ->
+          GiteeApiHttpClientRequestExecutor(GiteeSettings.getInstance(), null, true, GiteeApiResponseCache.getInstanceIfEnabled())
+      }
+      return decorate(executor, null)
+    }
 
-    fun create(): GiteeApiRequestExecutor = NoAuth(GiteeSettings.getInstance())
+    private fun decorate(executor: GiteeApiRequestExecutor, tokenSupplier: (() -> String)?): GiteeApiRequestExecutor {
+      val scheduling = GiteeApiSchedulingRequestExecutor.wrapIfEnabled(executor, tokenSupplier)
+      val batching = GiteeApiGQLBatchingRequestExecutor.wrapIfEnabled(scheduling)
+      return GiteeApiCoalescingRequestExecutor.wrapIfEnabled(batching, tokenSupplier)
+    }
 
     companion object {
       @JvmStatic
@@ -227,6 +275,156 @@ sealed class GiteeApiRequestExecutor {
 
   companion object {
     private val LOG = logger<GiteeApiRequestExecutor>()
+
+    internal const val USER_AGENT = "Intellij IDEA Gitee Plugin"
+    internal const val CANCELLATION_CHECK_INTERVAL = 50L
+
+    // HTTP/2 responses have no reason phrase
+    private val REASON_PHRASES = mapOf(400 to "Bad Request", 401 to "Unauthorized", 402 to "Payment Required", 403 to "Forbidden",
+                                       404 to "Not Found", 405 to "Method Not Allowed", 406 to "Not Acceptable", 409 to "Conflict",
+                                       410 to "Gone", 412 to "Precondition Failed", 413 to "Payload Too Large",
+                                       415 to "Unsupported Media Type", 422 to "Unprocessable Entity", 429 to "Too Many Requests",
+                                       500 to "Internal Server Error", 501 to "Not Implemented", 502 to "Bad Gateway",
+                                       503 to "Service Unavailable", 504 to "Gateway Timeout")
+
+    internal fun checkBreaker() {
+      check(!service<GERequestExecutorBreaker>().isRequestsShouldFail) {
+        "Request failure was triggered by user action. This a pretty long description of this failure that should resemble some long error which can go out of bounds."
+      }
+    }
+
+    /**
+     * Status line of a response, the standard reason phrase is used when the response has none
+     */
+    internal fun createStatusLine(statusCode: Int, reasonPhrase: String?): String {
+      val reason = reasonPhrase?.takeIf { it.isNotBlank() } ?: REASON_PHRASES[statusCode] ?: return statusCode.toString()
+      return "$statusCode $reason"
+    }
+
+    /**
+     * Charset of a response body with the [contentType], UTF-8 when it's missing or unknown
+     */
+    internal fun getCharset(contentType: String?): Charset {
+      val charset = contentType?.split(';')?.map { it.trim() }?.find { it.startsWith("charset=", true) }?.substringAfter('=')
+      return try {
+        charset?.let { Charset.forName(it.trim('"')) } ?: Charsets.UTF_8
+      }
+      catch (e: IllegalArgumentException) {
+        Charsets.UTF_8
+      }
+    }
+
+    /**
+     * Maps transport-independent failures to the request-specific result or error
+     */
+    internal fun <T> handleErrors(request: GiteeApiRequest<T>, execution: () -> T): T {
+      try {
+        return execution()
+      }
+      catch (e: GiteeStatusCodeException) {
+        @Suppress("UNCHECKED_CAST")
+        if (request is GiteeApiRequest.Get.Optional<*> && e.statusCode == HttpURLConnection.HTTP_NOT_FOUND) return null as T else throw e
+      }
+      catch (e: GiteeConfusingException) {
+        if (request.operationName != null) {
+          val errorText = "Can't ${request.operationName}"
+          e.setDetails(errorText)
+          LOG.debug(errorText, e)
+        }
+        throw e
+      }
+    }
+
+    internal fun createStatusCodeException(statusCode: Int,
+                                           statusLine: String,
+                                           contentType: String?,
+                                           errorText: String?,
+                                           requestDescription: () -> String): IOException {
+      val jsonError = errorText?.let { getJsonError(contentType, it) }
+      jsonError ?: LOG.debug("Request: ${requestDescription()} : Unable to parse JSON error")
+
+      return when (statusCode) {
+        HttpURLConnection.HTTP_UNAUTHORIZED,
+        HttpURLConnection.HTTP_PAYMENT_REQUIRED,
+        HttpURLConnection.HTTP_FORBIDDEN -> {
+          if (jsonError?.containsReasonMessage("API rate limit exceeded") == true) {
+            GiteeRateLimitExceededException(jsonError.presentableError)
+          }
+          else GiteeAuthenticationException("Request response: " + (jsonError?.presentableError ?: errorText ?: statusLine))
+        }
+
+        else -> {
+          if (jsonError != null) {
+            GiteeStatusCodeException("$statusLine - ${jsonError.presentableError}", jsonError, statusCode)
+          }
+          else {
+            GiteeStatusCodeException("$statusLine - ${errorText}", statusCode)
+          }
+        }
+      }
+    }
+
+    /**
+     * Passes the rate limit headers of a response to the [GiteeApiRequestScheduler]
+     */
+    internal fun updateRateLimits(request: GiteeApiRequest<*>, tokenSupplier: (() -> String)?, findHeader: (String) -> String?) {
+      if (!GiteeApiRequestScheduler.isEnabled()) return
+      GiteeApiRequestScheduler.getInstance().updateLimits(GiteeApiRequestScheduler.createKey(request.url, tokenSupplier), findHeader)
+    }
+
+    internal fun digest(value: String): String =
+      MessageDigest.getInstance("SHA-256").digest(value.toByteArray()).joinToString("") { "%02x".format(it) }
+
+    /**
+     * Cancels the [future] when [indicator] is cancelled before the future completes
+     */
+    internal fun <T> cancelWithIndicator(future: CompletableFuture<T>, indicator: ProgressIndicator): CompletableFuture<T> {
+      if (future.isDone) return future
+      val check = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay({
+        if (indicator.isCanceled) future.cancel(true)
+      }, CANCELLATION_CHECK_INTERVAL, CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS)
+      future.whenComplete { _, _ -> check.cancel(false) }
+      return future
+    }
+
+    /**
+     * Blocks until the [future] completes, cancelling it when [indicator] is cancelled and [cancelOnAbort] is set
+     */
+    @Throws(IOException::class, ProcessCanceledException::class)
+    internal fun <T> awaitWithCheckCanceled(future: CompletableFuture<T>, indicator: ProgressIndicator, cancelOnAbort: Boolean = true): T {
+      while (true) {
+        try {
+          indicator.checkCanceled()
+          return future.get(CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS)
+        }
+        catch (e: TimeoutException) {
+          continue
+        }
+        catch (e: ProcessCanceledException) {
+          if (cancelOnAbort) future.cancel(true)
+          throw e
+        }
+        catch (e: InterruptedException) {
+          if (cancelOnAbort) future.cancel(true)
+          throw ProcessCanceledException(e)
+        }
+        catch (e: ExecutionException) {
+          val cause = e.cause.let { if (it is CompletionException) it.cause else it }
+          if (cause is RuntimeException || cause is Error) throw cause
+          throw cause as? IOException ?: IOException(cause)
+        }
+      }
+    }
+
+    private fun getJsonError(contentType: String?, errorText: String): GiteeErrorMessage? {
+      if (contentType == null || !contentType.startsWith(GiteeApiContentHelper.JSON_MIME_TYPE)) return null
+      return try {
+        return GiteeApiContentHelper.fromJson(errorText)
+      }
+      catch (jse: GiteeJsonException) {
+        null
+      }
+    }
   }
 
   internal class MutableTokenSupplier(token: String) : () -> String {
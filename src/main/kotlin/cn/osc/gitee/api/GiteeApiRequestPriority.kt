@@ -0,0 +1,33 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+/**
+ * Order in which requests get the remaining rate limit quota, from the most to the least important.
+ *
+ * [reservedQuota] is a share of the limit which is kept for the more important requests.
+ * Requests with [shedWhenLimited] are the first to go: only a few of them run at once and they fail as soon as the quota runs low.
+ * When the quota is gone, a request with [waitForReset] waits for the limit to reset, the other ones fail right away.
+ */
+enum class GiteeApiRequestPriority(internal val reservedQuota: Double,
+                                   internal val shedWhenLimited: Boolean,
+                                   internal val waitForReset: Boolean) {
+  /**
+   * Requests made on behalf of the user, e.g. from dialogs and tool windows
+   */
+  INTERACTIVE(0.0, false, false),
+
+  /**
+   * Loading of diffs and changes of a pull request
+   */
+  DIFF(0.05, false, true),
+
+  /**
+   * Periodic checks for updates
+   */
+  POLLING(0.15, true, false),
+
+  /**
+   * Data loaded in the background, which nobody waits for
+   */
+  BACKGROUND(0.25, true, false)
+}
@@ -0,0 +1,276 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.AppExecutorUtil
+import cn.osc.gitee.exceptions.GiteeRateLimitExceededException
+import java.net.URI
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Keeps track of the rate limit quota per account and server and hands it out to requests by [GiteeApiRequestPriority].
+ *
+ * Quota is learned from the rate limit response headers and spent locally by every request until the next response corrects it.
+ * When the quota gets low, less important requests wait for the limit to reset or fail right away,
+ * so that the rest of the quota stays available for the user.
+ * Requests the user waits for are never queued behind the background ones, only the latter are limited in how many run at once.
+ *
+ * Enabled with the "gitee.api.requests.scheduler" registry key.
+ */
+@Service
+class GiteeApiRequestScheduler {
+
+  private val buckets = ConcurrentHashMap<BucketKey, Bucket>()
+
+  /**
+   * Blocks until a request with [priority] can be sent, must be followed by [release]
+   */
+  @Throws(GiteeRateLimitExceededException::class, ProcessCanceledException::class)
+  internal fun acquire(key: BucketKey, priority: GiteeApiRequestPriority, indicator: ProgressIndicator) =
+    getBucket(key).acquire(priority, indicator)
+
+  /**
+   * Queues a request with [priority] without blocking a thread, the future completes when the request can be sent
+   * and must be followed by [release]. Cancelling the future takes the request out of the queue.
+   */
+  internal fun acquireAsync(key: BucketKey, priority: GiteeApiRequestPriority): CompletableFuture<Unit> =
+    getBucket(key).acquireAsync(priority)
+
+  internal fun release(key: BucketKey, priority: GiteeApiRequestPriority) = getBucket(key).release(priority)
+
+  internal fun updateLimits(key: BucketKey, findHeader: (String) -> String?) {
+    val limit = findHeader(LIMIT_HEADER)?.toIntOrNull()
+    val remaining = findHeader(REMAINING_HEADER)?.toIntOrNull()
+    val reset = findHeader(RESET_HEADER)?.toLongOrNull()
+    if (limit == null && remaining == null && reset == null) return
+    getBucket(key).update(limit, remaining, reset?.let { TimeUnit.SECONDS.toMillis(it) })
+  }
+
+  internal fun limitExceeded(key: BucketKey) = getBucket(key).exhaust()
+
+  fun getState(key: BucketKey): State? = buckets[key]?.getState()
+
+  private fun getBucket(key: BucketKey) = buckets.computeIfAbsent(key) { Bucket() }
+
+  private class Bucket {
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+
+    private var limit: Int? = null
+    private var remaining: Int? = null
+    private var resetAt = 0L
+
+    private var running = 0
+    // requests which are shed when the quota is low
+    private var runningShedable = 0
+    private var sequence = 0L
+    private val waiting = PriorityQueue(compareBy<Waiter>({ it.priority.ordinal }, { it.sequence }))
+    private var dispatchScheduled = false
+
+    fun acquire(priority: GiteeApiRequestPriority, indicator: ProgressIndicator) {
+      try {
+        waitInQueue(priority, indicator)
+      }
+      finally {
+        dispatch()
+      }
+    }
+
+    private fun waitInQueue(priority: GiteeApiRequestPriority, indicator: ProgressIndicator) = lock.withLock {
+      val waiter = Waiter(priority, sequence++, null)
+      waiting.add(waiter)
+      try {
+        while (true) {
+          indicator.checkCanceled()
+          val now = System.currentTimeMillis()
+          refreshQuota(now)
+
+          val hasQuota = hasQuota(priority)
+          if (hasQuota && !isThrottled(priority) && waiting.peek() === waiter) {
+            take(priority)
+            return@withLock
+          }
+          if (!hasQuota && isRejected(priority, now)) throw createRejectedException()
+          changed.await(WAIT_INTERVAL, TimeUnit.MILLISECONDS)
+        }
+      }
+      catch (e: InterruptedException) {
+        throw ProcessCanceledException(e)
+      }
+      finally {
+        waiting.remove(waiter)
+        changed.signalAll()
+      }
+    }
+
+    fun acquireAsync(priority: GiteeApiRequestPriority): CompletableFuture<Unit> {
+      val future = CompletableFuture<Unit>()
+      val waiter = lock.withLock {
+        Waiter(priority, sequence++, future).also(waiting::add)
+      }
+      future.whenComplete { _, _ ->
+        // cancelled waiter leaves the queue, a granted one is already out of it
+        if (lock.withLock { waiting.remove(waiter) }) dispatch()
+      }
+      dispatch()
+      return future
+    }
+
+    /**
+     * Hands the quota out to the async waiters at the head of the queue, the blocking ones take it themselves.
+     * Futures are completed outside the lock.
+     */
+    private fun dispatch() {
+      val granted = mutableListOf<Waiter>()
+      val rejected = mutableListOf<Waiter>()
+      lock.withLock {
+        while (true) {
+          val waiter = waiting.peek() ?: break
+          if (waiter.future == null) break
+          val priority = waiter.priority
+          val now = System.currentTimeMillis()
+          refreshQuota(now)
+
+          if (hasQuota(priority)) {
+            if (isThrottled(priority)) break
+            waiting.poll()
+            take(priority)
+            granted.add(waiter)
+            continue
+          }
+          if (isRejected(priority, now)) {
+            waiting.poll()
+            rejected.add(waiter)
+            continue
+          }
+          // nothing signals the reset of the limit
+          scheduleDispatch()
+          break
+        }
+        changed.signalAll()
+      }
+      for (waiter in granted) {
+        // cancelled right before it was granted
+        if (!waiter.future!!.complete(Unit)) release(waiter.priority)
+      }
+      for (waiter in rejected) {
+        waiter.future!!.completeExceptionally(createRejectedException())
+      }
+    }
+
+    private fun scheduleDispatch() {
+      if (dispatchScheduled) return
+      dispatchScheduled = true
+      AppExecutorUtil.getAppScheduledExecutorService().schedule({
+        lock.withLock { dispatchScheduled = false }
+        dispatch()
+      }, WAIT_INTERVAL, TimeUnit.MILLISECONDS)
+    }
+
+    private fun refreshQuota(now: Long) {
+      if (resetAt in 1..now) {
+        remaining = limit
+        resetAt = 0
+      }
+    }
+
+    private fun hasQuota(priority: GiteeApiRequestPriority): Boolean {
+      val remaining = remaining ?: return true
+      val reserved = limit?.let { (it * priority.reservedQuota).toInt() } ?: 0
+      return remaining > reserved
+    }
+
+    private fun isThrottled(priority: GiteeApiRequestPriority) =
+      priority.shedWhenLimited && runningShedable >= MAX_CONCURRENT_SHEDABLE_REQUESTS
+
+    private fun isRejected(priority: GiteeApiRequestPriority, now: Long): Boolean {
+      val untilReset = if (resetAt > 0) resetAt - now else DEFAULT_RESET_DELAY
+      if (priority.waitForReset && untilReset <= MAX_WAIT_TIME) return false
+      LOG.debug("Request with priority $priority rejected, rate limit resets in ${untilReset}ms")
+      return true
+    }
+
+    private fun take(priority: GiteeApiRequestPriority) {
+      running++
+      if (priority.shedWhenLimited) runningShedable++
+      remaining = remaining?.minus(1)
+    }
+
+    fun release(priority: GiteeApiRequestPriority) {
+      lock.withLock {
+        running--
+        if (priority.shedWhenLimited) runningShedable--
+      }
+      dispatch()
+    }
+
+    fun update(limit: Int?, remaining: Int?, resetAt: Long?) {
+      lock.withLock {
+        if (limit != null) this.limit = limit
+        if (remaining != null) {
+          val current = this.remaining
+          // responses to parallel requests arrive out of order, so within one window the lowest value is the most recent one
+          this.remaining = if (current == null || resetAt != this.resetAt) remaining else minOf(current, remaining)
+        }
+        if (resetAt != null) this.resetAt = resetAt
+      }
+      dispatch()
+    }
+
+    fun exhaust() = lock.withLock {
+      remaining = 0
+      val now = System.currentTimeMillis()
+      if (resetAt <= now) resetAt = now + DEFAULT_RESET_DELAY
+    }
+
+    fun getState() = lock.withLock { State(limit, remaining, resetAt.takeIf { it > 0 }, running, waiting.size) }
+  }
+
+  // async waiters have a future which is completed when the quota is granted
+  private class Waiter(val priority: GiteeApiRequestPriority, val sequence: Long, val future: CompletableFuture<Unit>?)
+
+  data class BucketKey(val server: String, val identity: String?)
+
+  data class State(val limit: Int?, val remaining: Int?, val resetAt: Long?, val running: Int, val waiting: Int)
+
+  companion object {
+    private val LOG = logger<GiteeApiRequestScheduler>()
+
+    private const val LIMIT_HEADER = "X-RateLimit-Limit"
+    private const val REMAINING_HEADER = "X-RateLimit-Remaining"
+    private const val RESET_HEADER = "X-RateLimit-Reset"
+
+    private const val MAX_CONCURRENT_SHEDABLE_REQUESTS = 8
+    private const val WAIT_INTERVAL = 50L
+    private val MAX_WAIT_TIME = TimeUnit.MINUTES.toMillis(2)
+    private val DEFAULT_RESET_DELAY = TimeUnit.MINUTES.toMillis(1)
+
+    private fun createRejectedException() =
+      GiteeRateLimitExceededException("API rate limit is almost exhausted, request postponed until the limit resets")
+
+    @JvmStatic
+    fun getInstance(): GiteeApiRequestScheduler = service()
+
+    internal fun isEnabled() = Registry.`is`("gitee.api.requests.scheduler", true)
+
+    internal fun createKey(url: String, tokenSupplier: (() -> String)?): BucketKey {
+      val server = try {
+        URI.create(url).authority ?: url
+      }
+      catch (e: IllegalArgumentException) {
+        url
+      }
+      return BucketKey(server, tokenSupplier?.let { GiteeApiRequestExecutor.digest(it()) })
+    }
+  }
+}
@@ -11,6 +11,7 @@ import cn.osc.gitee.api.util.GiteeApiSearchQueryBuilder
 import cn.osc.gitee.api.util.GiteeApiUrlQueryBuilder
 import java.awt.Image
 import java.awt.image.BufferedImage
+import java.io.Reader
 
 /**
  * Collection of factory methods for API requests used in plugin
@@ -166,7 +167,19 @@ object GiteeApiRequests {
               it.reader().use { it.readText() }
             })
           }
-        }.withOperationName("get diff for ref")
+        }.withOperationName("get diff for ref").withPriority(GiteeApiRequestPriority.DIFF)
+
+      /**
+       * Same as [getDiff], but the diff is passed to [diffConsumer] as a stream instead of being read into a string
+       */
+      @JvmStatic
+      fun getDiff(repository: GERepositoryCoordinates, ref: String, diffConsumer: (Reader) -> Unit) =
+        object : Get<Unit>(getUrl(repository, urlSuffix, "/$ref"),
+                           GiteeApiContentHelper.V3_DIFF_JSON_MIME_TYPE) {
+          override fun extractResult(response: GiteeApiResponse) = response.handleBody(ThrowableConvertor {
+            it.reader().use(diffConsumer)
+          })
+        }.withOperationName("get diff for ref").withPriority(GiteeApiRequestPriority.DIFF)
 
       @JvmStatic
       fun getDiff(repository: GERepositoryCoordinates, refA: String, refB: String) =
@@ -177,7 +190,19 @@ object GiteeApiRequests {
               it.reader().use { it.readText() }
             })
           }
-        }.withOperationName("get diff between refs")
+        }.withOperationName("get diff between refs").withPriority(GiteeApiRequestPriority.DIFF)
+
+      /**
+       * Same as [getDiff], but the diff is passed to [diffConsumer] as a stream instead of being read into a string
+       */
+      @JvmStatic
+      fun getDiff(repository: GERepositoryCoordinates, refA: String, refB: String, diffConsumer: (Reader) -> Unit) =
+        object : Get<Unit>(getUrl(repository, "/compare/$refA...$refB"),
+                           GiteeApiContentHelper.V3_DIFF_JSON_MIME_TYPE) {
+          override fun extractResult(response: GiteeApiResponse) = response.handleBody(ThrowableConvertor {
+            it.reader().use(diffConsumer)
+          })
+        }.withOperationName("get diff between refs").withPriority(GiteeApiRequestPriority.DIFF)
     }
 
     object Forks : Entity("/forks") {
@@ -381,12 +406,20 @@ object GiteeApiRequests {
                        GiteePullRequestMergeRebaseRequest(headSha))
           .withOperationName("rebase and merge pull request ${number}")
 
+      /**
+       * With [knownETag] the request is conditional, and an unchanged list is answered with "Not Modified" and the same ETag
+       */
       @JvmStatic
-      fun getListETag(server: GiteeServerPath, repoPath: GERepositoryPath) =
+      @JvmOverloads
+      fun getListETag(server: GiteeServerPath, repoPath: GERepositoryPath, knownETag: String? = null) =
         object : Get<String?>(getUrl(server, Repos.urlSuffix, "/$repoPath", urlSuffix,
                                      GiteeApiUrlQueryBuilder.urlQuery { param(GiteeRequestPagination(pageSize = 1)) })) {
+          init {
+            if (knownETag != null) headers["If-None-Match"] = knownETag
+          }
+
           override fun extractResult(response: GiteeApiResponse) = response.findHeader("ETag")
-        }.withOperationName("get pull request list ETag")
+        }.withOperationName("get pull request list ETag").withPriority(GiteeApiRequestPriority.POLLING)
 
       object Reviewers : Entity("/requested_reviewers") {
         @JvmStatic
@@ -0,0 +1,360 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.ThrowableConvertor
+import java.io.*
+import java.net.HttpURLConnection
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.*
+
+/**
+ * Bounded on-disk store of GET responses which carry an ETag or Last-Modified validator.
+ * Stored validators are sent back as conditional headers, and a 304 answer is served from disk.
+ *
+ * Enabled with the "gitee.api.response.cache" registry key.
+ */
+@Service
+class GiteeApiResponseCache internal constructor(private val cacheDir: Path,
+                                                 private val maxSize: Long,
+                                                 private val maxEntrySize: Int) {
+
+  constructor() : this(Path(PathManager.getSystemPath(), "gitee", "api-response-cache"), MAX_CACHE_SIZE, MAX_ENTRY_SIZE)
+
+  private val hits = AtomicLong()
+  private val misses = AtomicLong()
+  private val bytesSaved = AtomicLong()
+
+  // entry name -> entry file size, in access order
+  private var index: LinkedHashMap<String, Long>? = null
+  private var totalSize = 0L
+
+  val statistics: Statistics
+    get() = Statistics(hits.get(), misses.get(), bytesSaved.get(), synchronized(this) { totalSize })
+
+  /**
+   * Cached entry of a GET [request] made with the token of [tokenSupplier]
+   */
+  fun find(request: GiteeApiRequest<*>, tokenSupplier: (() -> String)?): Entry? {
+    if (request !is GiteeApiRequest.Get) return null
+    val name = entryName(request, tokenSupplier)
+    synchronized(this) {
+      if (getIndex()[name] == null) return null
+    }
+    val file = cacheDir.resolve(name)
+    return try {
+      val entry = DataInputStream(file.inputStream().buffered()).use { readEntry(it) }
+      file.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+      entry
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to read cached response for ${request.url}", e)
+      remove(name)
+      null
+    }
+  }
+
+  /**
+   * Wraps the response of a GET [request] so that a 304 is served from [cached] entry
+   * and a fresh response with validators is stored for the next time.
+   * The fresh body is written to disk while it is read and is not stored if it turns out to be larger than [maxEntrySize].
+   */
+  @Throws(IOException::class)
+  internal fun createResponse(request: GiteeApiRequest<*>,
+                              tokenSupplier: (() -> String)?,
+                              statusCode: Int,
+                              headerFields: Map<out String?, List<String>>,
+                              cached: Entry?,
+                              bodyStreamSupplier: () -> InputStream): GiteeApiResponse? {
+    if (request !is GiteeApiRequest.Get) return null
+
+    if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+      hits.incrementAndGet()
+      bytesSaved.addAndGet(cached.body.size.toLong())
+      LOG.debug("Request: ${request.url} : Served from cache")
+      return CachedResponse(cached.headers) { ByteArrayInputStream(cached.body) }
+    }
+    misses.incrementAndGet()
+
+    if (statusCode != HttpURLConnection.HTTP_OK) return null
+    val headers = TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER)
+    for ((name, values) in headerFields) {
+      if (name != null && values.isNotEmpty()) headers[name] = values.first()
+    }
+    val etag = headers[ETAG_HEADER]
+    val lastModified = headers[LAST_MODIFIED_HEADER]
+    if (etag == null && lastModified == null) return null
+    val contentLength = headers[CONTENT_LENGTH_HEADER]?.toLongOrNull()
+    if (contentLength != null && contentLength > maxEntrySize) return null
+
+    val name = entryName(request, tokenSupplier)
+    val header = Entry(etag, lastModified, headers, EMPTY_BODY)
+    return CachedResponse(headers) { CachingInputStream(bodyStreamSupplier(), name, header) }
+  }
+
+  private fun store(name: String, tempFile: Path) {
+    try {
+      val size = tempFile.fileSize()
+      Files.move(tempFile, cacheDir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      synchronized(this) {
+        val index = getIndex()
+        index.put(name, size)?.let { totalSize -= it }
+        totalSize += size
+        evictIfNeeded(index)
+      }
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to store cached response", e)
+      tempFile.deleteIfExists()
+    }
+  }
+
+  /**
+   * Copies the body to a temporary entry file while it is read and stores the entry when the body is read completely.
+   * Whatever the reader leaves unread is drained on close, as long as the entry stays within [maxEntrySize].
+   */
+  private inner class CachingInputStream(input: InputStream, private val name: String, private val header: Entry)
+    : FilterInputStream(input) {
+
+    private var tempFile: Path? = null
+    private var output: OutputStream? = null
+    private var size = 0L
+    private var abandoned = false
+    private var finished = false
+    private var closed = false
+
+    override fun read(): Int {
+      val b = super.read()
+      if (b < 0) finished = true else cache(byteArrayOf(b.toByte()), 0, 1)
+      return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val read = super.read(b, off, len)
+      if (read < 0) finished = true else cache(b, off, read)
+      return read
+    }
+
+    override fun skip(n: Long): Long {
+      val buffer = ByteArray(minOf(n, BUFFER_SIZE.toLong()).toInt())
+      val read = read(buffer, 0, buffer.size)
+      return if (read < 0) 0 else read.toLong()
+    }
+
+    override fun markSupported() = false
+
+    override fun mark(readlimit: Int) {}
+
+    override fun reset() = throw IOException("mark/reset not supported")
+
+    private fun cache(b: ByteArray, off: Int, len: Int) {
+      if (abandoned || len == 0) return
+      size += len
+      if (size > maxEntrySize) {
+        abandon()
+        return
+      }
+      try {
+        val output = output ?: createOutput()
+        output.write(b, off, len)
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to write cached response", e)
+        abandon()
+      }
+    }
+
+    private fun createOutput(): OutputStream {
+      cacheDir.createDirectories()
+      val file = Files.createTempFile(cacheDir, name, ".tmp")
+      tempFile = file
+      return DataOutputStream(file.outputStream().buffered()).also {
+        output = it
+        writeEntryHeader(it, header)
+      }
+    }
+
+    private fun abandon() {
+      abandoned = true
+      closeOutput()
+      tempFile?.deleteIfExists()
+    }
+
+    private fun closeOutput() {
+      try {
+        output?.close()
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to write cached response", e)
+        abandoned = true
+      }
+      output = null
+    }
+
+    override fun close() {
+      if (closed) return
+      closed = true
+      try {
+        val buffer = ByteArray(BUFFER_SIZE)
+        while (!finished && !abandoned) read(buffer, 0, buffer.size)
+      }
+      catch (e: IOException) {
+        abandoned = true
+      }
+      finally {
+        super.close()
+        closeOutput()
+        val file = tempFile
+        if (file != null) {
+          if (abandoned) file.deleteIfExists()
+          else store(name, file)
+        }
+      }
+    }
+  }
+
+  private fun remove(name: String) {
+    synchronized(this) {
+      getIndex().remove(name)?.let { totalSize -= it }
+    }
+    cacheDir.resolve(name).deleteIfExists()
+  }
+
+  fun clear() {
+    synchronized(this) {
+      getIndex().keys.toList().forEach { cacheDir.resolve(it).deleteIfExists() }
+      getIndex().clear()
+      totalSize = 0
+    }
+  }
+
+  private fun evictIfNeeded(index: LinkedHashMap<String, Long>) {
+    val iterator = index.entries.iterator()
+    while (totalSize > maxSize && iterator.hasNext()) {
+      val (name, size) = iterator.next()
+      iterator.remove()
+      totalSize -= size
+      cacheDir.resolve(name).deleteIfExists()
+    }
+  }
+
+  private fun getIndex(): LinkedHashMap<String, Long> {
+    index?.let { return it }
+    val loaded = LinkedHashMap<String, Long>(16, 0.75f, true)
+    totalSize = 0
+    if (cacheDir.isDirectory()) {
+      try {
+        cacheDir.listDirectoryEntries()
+          .filter { it.isRegularFile() && !it.name.endsWith(".tmp") }
+          .sortedBy { it.getLastModifiedTime() }
+          .forEach {
+            val size = it.fileSize()
+            loaded[it.name] = size
+            totalSize += size
+          }
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to load response cache index", e)
+      }
+    }
+    index = loaded
+    evictIfNeeded(loaded)
+    return loaded
+  }
+
+  class Entry(val etag: String?, val lastModified: String?, val headers: Map<String, String>, val body: ByteArray) {
+
+    val conditionalHeaders: Map<String, String>
+      get() = listOfNotNull(etag?.let { IF_NONE_MATCH_HEADER to it },
+                            lastModified?.let { IF_MODIFIED_SINCE_HEADER to it }).toMap()
+  }
+
+  data class Statistics(val hits: Long, val misses: Long, val bytesSaved: Long, val diskUsage: Long)
+
+  private class CachedResponse(private val headers: Map<String, String>, private val bodyStreamSupplier: () -> InputStream)
+    : GiteeApiResponse {
+    override fun findHeader(headerName: String): String? = headers[headerName]
+
+    override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T =
+      InputStreamReader(bodyStreamSupplier(), GiteeApiRequestExecutor.getCharset(headers["Content-Type"])).use {
+        converter.convert(it)
+      }
+
+    override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T = bodyStreamSupplier().use {
+      converter.convert(it)
+    }
+  }
+
+  companion object {
+    private val LOG = logger<GiteeApiResponseCache>()
+
+    private const val VERSION = 2
+    private const val MAX_CACHE_SIZE = 64L * 1024 * 1024
+    private const val MAX_ENTRY_SIZE = 2 * 1024 * 1024
+    private const val BUFFER_SIZE = 8192
+    private val EMPTY_BODY = ByteArray(0)
+
+    private const val ETAG_HEADER = "ETag"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
+    private const val CONTENT_LENGTH_HEADER = "Content-Length"
+    private const val IF_NONE_MATCH_HEADER = "If-None-Match"
+    private const val IF_MODIFIED_SINCE_HEADER = "If-Modified-Since"
+
+    @JvmStatic
+    fun getInstance(): GiteeApiResponseCache = service()
+
+    internal fun getInstanceIfEnabled(): GiteeApiResponseCache? =
+      if (Registry.`is`("gitee.api.response.cache", false)) getInstance() else null
+
+    /**
+     * Responses depend on the token they were requested with, and the cache is shared between the accounts
+     */
+    private fun entryName(request: GiteeApiRequest<*>, tokenSupplier: (() -> String)?): String {
+      val identity = tokenSupplier?.let { GiteeApiRequestExecutor.digest(it()) }
+      val digest = MessageDigest.getInstance("SHA-1").digest("${identity}\n${request.acceptMimeType}\n${request.url}".toByteArray())
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * Writes everything but the body, which follows the header up to the end of the entry file
+     */
+    private fun writeEntryHeader(output: DataOutputStream, entry: Entry) {
+      output.writeInt(VERSION)
+      output.writeNullableUTF(entry.etag)
+      output.writeNullableUTF(entry.lastModified)
+      output.writeInt(entry.headers.size)
+      for ((name, value) in entry.headers) {
+        output.writeUTF(name)
+        output.writeUTF(value)
+      }
+    }
+
+    private fun readEntry(input: DataInputStream): Entry {
+      if (input.readInt() != VERSION) throw IOException("Unsupported cache entry version")
+      val etag = input.readNullableUTF()
+      val lastModified = input.readNullableUTF()
+      val headers = TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER)
+      repeat(input.readInt()) {
+        headers[input.readUTF()] = input.readUTF()
+      }
+      return Entry(etag, lastModified, headers, input.readBytes())
+    }
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+      writeBoolean(value != null)
+      if (value != null) writeUTF(value)
+    }
+
+    private fun DataInputStream.readNullableUTF(): String? = if (readBoolean()) readUTF() else null
+  }
+}
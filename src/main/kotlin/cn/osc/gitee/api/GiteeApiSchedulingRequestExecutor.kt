@@ -0,0 +1,75 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.api
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import cn.osc.gitee.exceptions.GiteeRateLimitExceededException
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+/**
+ * Sends requests only when [GiteeApiRequestScheduler] lets them through according to their [GiteeApiRequest.priority]
+ */
+internal class GiteeApiSchedulingRequestExecutor(private val delegate: GiteeApiRequestExecutor,
+                                                 private val tokenSupplier: (() -> String)?,
+                                                 private val scheduler: GiteeApiRequestScheduler)
+  : GiteeApiRequestExecutor() {
+
+  override fun addListener(disposable: Disposable, listener: () -> Unit) = delegate.addListener(disposable, listener)
+
+  @Throws(IOException::class, ProcessCanceledException::class)
+  override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T {
+    val key = GiteeApiRequestScheduler.createKey(request.url, tokenSupplier)
+    val priority = request.priority
+    scheduler.acquire(key, priority, indicator)
+    try {
+      return delegate.execute(indicator, request)
+    }
+    catch (e: GiteeRateLimitExceededException) {
+      scheduler.limitExceeded(key)
+      throw e
+    }
+    finally {
+      scheduler.release(key, priority)
+    }
+  }
+
+  /**
+   * Waits for the scheduler in its queue instead of a blocked thread
+   */
+  override fun <T> executeAsync(indicator: ProgressIndicator, request: GiteeApiRequest<T>): CompletableFuture<T> {
+    val key = GiteeApiRequestScheduler.createKey(request.url, tokenSupplier)
+    val priority = request.priority
+    val acquired = scheduler.acquireAsync(key, priority)
+    val result = CompletableFuture<T>()
+    acquired.whenComplete { _, acquireError ->
+      if (acquireError != null) {
+        result.completeExceptionally(acquireError)
+        return@whenComplete
+      }
+      if (result.isDone) {
+        scheduler.release(key, priority)
+        return@whenComplete
+      }
+      val delegateResult = delegate.executeAsync(indicator, request)
+      result.whenComplete { _, _ -> delegateResult.cancel(true) }
+      delegateResult.whenComplete { value, error ->
+        val cause = (error as? CompletionException)?.cause ?: error
+        if (cause is GiteeRateLimitExceededException) scheduler.limitExceeded(key)
+        scheduler.release(key, priority)
+        if (cause != null) result.completeExceptionally(cause) else result.complete(value)
+      }
+    }
+    // a cancelled request leaves the queue
+    result.whenComplete { _, _ -> acquired.cancel(false) }
+    return cancelWithIndicator(result, indicator)
+  }
+
+  companion object {
+    fun wrapIfEnabled(executor: GiteeApiRequestExecutor, tokenSupplier: (() -> String)?): GiteeApiRequestExecutor =
+      if (GiteeApiRequestScheduler.isEnabled()) GiteeApiSchedulingRequestExecutor(executor, tokenSupplier, GiteeApiRequestScheduler.getInstance())
+      else executor
+  }
+}
@@ -7,12 +7,18 @@ class GiteeResponsePage<T>(val items: List<T>,
                             val firstLink: String? = null,
                             val prevLink: String? = null,
                             val nextLink: String? = null,
-                            val lastLink: String? = null) {
+                            val lastLink: String? = null,
+                            val totalPages: Int? = null) {
 
   val hasNext = nextLink != null
 
-  constructor(items: List<T>, linkHeaderValue: LinkHttpHeaderValue?)
-    : this(items, linkHeaderValue?.firstLink, linkHeaderValue?.prevLink, linkHeaderValue?.nextLink, linkHeaderValue?.lastLink)
+  constructor(items: List<T>, linkHeaderValue: LinkHttpHeaderValue?, totalPages: Int? = null)
+    : this(items, linkHeaderValue?.firstLink, linkHeaderValue?.prevLink, linkHeaderValue?.nextLink, linkHeaderValue?.lastLink,
+           totalPages)
+
+  companion object {
+    const val TOTAL_PAGES_HEADER = "total_page"
+  }
 }
 
 
@@ -5,6 +5,7 @@ import com.intellij.collaboration.api.dto.GraphQLCursorPageInfoDTO
 import com.intellij.openapi.progress.ProgressIndicator
 import cn.osc.gitee.api.GiteeApiRequest
 import cn.osc.gitee.api.GiteeApiRequestExecutor
+import cn.osc.gitee.api.GiteeApiRequestPriority
 import cn.osc.gitee.api.data.graphql.GEGQLRequestPagination
 import cn.osc.gitee.api.data.request.GiteeRequestPagination
 import java.util.*
@@ -20,8 +21,11 @@ abstract class GEGQLPagesLoader<T, R>(private val executor: GiteeApiRequestExecu
   val hasNext: Boolean
     get() = iterationDataRef.get().hasNext
 
+  /**
+   * @param priority priority of the request, the one set by the request producer when null
+   */
   @Synchronized
-  fun loadNext(progressIndicator: ProgressIndicator, update: Boolean = false): R? {
+  fun loadNext(progressIndicator: ProgressIndicator, update: Boolean = false, priority: GiteeApiRequestPriority? = null): R? {
     val iterationData = iterationDataRef.get()
 
     val pagination: GEGQLRequestPagination =
@@ -35,7 +39,8 @@ abstract class GEGQLPagesLoader<T, R>(private val executor: GiteeApiRequestExecu
       }
 
     val executionDate = Date()
-    val response = executor.execute(progressIndicator, requestProducer(pagination))
+    val request = requestProducer(pagination).let { if (priority != null) it.withPriority(priority) else it }
+    val response = executor.execute(progressIndicator, request)
     val page = extractPageInfo(response)
     iterationDataRef.compareAndSet(iterationData, IterationData(page, executionDate))
 
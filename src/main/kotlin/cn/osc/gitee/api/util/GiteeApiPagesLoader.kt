@@ -6,6 +6,9 @@ import cn.osc.gitee.api.GiteeApiRequest
 import cn.osc.gitee.api.GiteeApiRequestExecutor
 import cn.osc.gitee.api.data.GiteeResponsePage
 import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
 import java.util.function.Predicate
 
 object GiteeApiPagesLoader {
@@ -18,20 +21,161 @@ object GiteeApiPagesLoader {
     return result
   }
 
+  /**
+   * Pages are decoded incrementally, so [pageItemsConsumer] gets the items of a page in chunks while its body is still being received
+   */
   @Throws(IOException::class)
   @JvmStatic
   fun <T> loadAll(executor: GiteeApiRequestExecutor,
                   indicator: ProgressIndicator,
                   pagesRequest: Request<T>,
                   pageItemsConsumer: (List<T>) -> Unit) {
-    var request: GiteeApiRequest<GiteeResponsePage<T>>? = pagesRequest.initialRequest
+    loadSequentially(executor, indicator, pagesRequest.initialRequest, pagesRequest, pageItemsConsumer)
+  }
+
+  private fun <T> loadSequentially(executor: GiteeApiRequestExecutor,
+                                   indicator: ProgressIndicator,
+                                   initialRequest: GiteeApiRequest<GiteeResponsePage<T>>,
+                                   pagesRequest: Request<T>,
+                                   pageItemsConsumer: (List<T>) -> Unit) {
+    var request: GiteeApiRequest<GiteeResponsePage<T>>? = initialRequest
     while (request != null) {
-      val page = executor.execute(indicator, request)
-      pageItemsConsumer(page.items)
+      val page = loadPage(executor, indicator, request, pageItemsConsumer)
       request = page.nextLink?.let(pagesRequest.urlRequestProvider)
     }
   }
 
+  private fun <T> loadPage(executor: GiteeApiRequestExecutor,
+                           indicator: ProgressIndicator,
+                           request: GiteeApiRequest<GiteeResponsePage<T>>,
+                           pageItemsConsumer: (List<T>) -> Unit): GiteeResponsePage<T> {
+    val chunk = ArrayList<T>(STREAMING_CHUNK_SIZE)
+    val page = executor.execute(indicator, streaming(request) {
+      chunk.add(it)
+      if (chunk.size >= STREAMING_CHUNK_SIZE) pageItemsConsumer(chunk.takeAndClear())
+    })
+    if (chunk.isNotEmpty()) pageItemsConsumer(chunk.takeAndClear())
+    if (page.items.isNotEmpty()) pageItemsConsumer(page.items)
+    return page
+  }
+
+  /**
+   * Same as [loadAll], but when the first page tells the number of the last one, the remaining pages
+   * are requested concurrently, keeping at most [maxConcurrentRequests] of them in flight.
+   * Falls back to sequential loading when the last page is unknown.
+   */
+  @Throws(IOException::class)
+  @JvmStatic
+  @JvmOverloads
+  fun <T> loadAllParallel(executor: GiteeApiRequestExecutor,
+                          indicator: ProgressIndicator,
+                          pagesRequest: Request<T>,
+                          maxConcurrentRequests: Int = DEFAULT_MAX_CONCURRENT_REQUESTS): List<T> {
+    val result = mutableListOf<T>()
+    loadAllParallel(executor, indicator, pagesRequest, maxConcurrentRequests) { result.addAll(it) }
+    return result
+  }
+
+  /**
+   * Items are passed to [pageItemsConsumer] in the order of the pages and in chunks while the pages are received.
+   * Chunks of a page received ahead are queued until the pages before it are consumed.
+   */
+  @Throws(IOException::class)
+  @JvmStatic
+  fun <T> loadAllParallel(executor: GiteeApiRequestExecutor,
+                          indicator: ProgressIndicator,
+                          pagesRequest: Request<T>,
+                          maxConcurrentRequests: Int = DEFAULT_MAX_CONCURRENT_REQUESTS,
+                          pageItemsConsumer: (List<T>) -> Unit) {
+    val firstPage = loadPage(executor, indicator, pagesRequest.initialRequest, pageItemsConsumer)
+    val nextLink = firstPage.nextLink ?: return
+
+    val pagesUrls = getRemainingPagesUrls(firstPage, nextLink)
+    if (pagesUrls == null) {
+      loadSequentially(executor, indicator, pagesRequest.urlRequestProvider(nextLink), pagesRequest, pageItemsConsumer)
+      return
+    }
+
+    val window = ArrayDeque<StreamedPage<T>>()
+    val urlsIterator = pagesUrls.iterator()
+    try {
+      while (urlsIterator.hasNext() || window.isNotEmpty()) {
+        while (urlsIterator.hasNext() && window.size < maxConcurrentRequests) {
+          window.addLast(StreamedPage(executor, indicator, pagesRequest.urlRequestProvider(urlsIterator.next())))
+        }
+        window.removeFirst().consume(indicator, pageItemsConsumer)
+      }
+    }
+    finally {
+      window.forEach { it.cancel() }
+    }
+  }
+
+  /**
+   * Page requested without blocking, its items are queued in chunks as they are decoded
+   */
+  private class StreamedPage<T>(executor: GiteeApiRequestExecutor,
+                                indicator: ProgressIndicator,
+                                request: GiteeApiRequest<GiteeResponsePage<T>>) {
+    // an empty chunk marks the end of the page
+    private val chunks = LinkedBlockingQueue<List<T>>()
+    private val response: CompletableFuture<GiteeResponsePage<T>>
+    private val future: CompletableFuture<GiteeResponsePage<T>>
+
+    init {
+      val chunk = ArrayList<T>(STREAMING_CHUNK_SIZE)
+      response = executor.executeAsync(indicator, streaming(request) {
+        chunk.add(it)
+        if (chunk.size >= STREAMING_CHUNK_SIZE) chunks.add(chunk.takeAndClear())
+      })
+      future = response.thenApply {
+        if (chunk.isNotEmpty()) chunks.add(chunk.takeAndClear())
+        if (it.items.isNotEmpty()) chunks.add(it.items)
+        it
+      }
+      future.whenComplete { _, _ -> chunks.add(emptyList()) }
+    }
+
+    /**
+     * Passes the chunks to [itemsConsumer] as they come until the page is received
+     */
+    fun consume(indicator: ProgressIndicator, itemsConsumer: (List<T>) -> Unit) {
+      while (true) {
+        indicator.checkCanceled()
+        val chunk = chunks.poll(GiteeApiRequestExecutor.CANCELLATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS) ?: continue
+        if (chunk.isEmpty()) break
+        itemsConsumer(chunk)
+      }
+      // rethrows the failure of the request
+      GiteeApiRequestExecutor.awaitWithCheckCanceled(future, indicator)
+    }
+
+    fun cancel() {
+      response.cancel(true)
+      future.cancel(true)
+    }
+  }
+
+  /**
+   * Copy of the [request] which passes the items to [itemConsumer] as they are decoded, the request itself if it can't be streamed
+   */
+  private fun <T> streaming(request: GiteeApiRequest<GiteeResponsePage<T>>,
+                            itemConsumer: (T) -> Unit): GiteeApiRequest<GiteeResponsePage<T>> {
+    @Suppress("UNCHECKED_CAST")
+    return (request as? GiteeApiRequest.Get.JsonPage<T>)?.streaming(itemConsumer) ?: request
+  }
+
+  private fun <T> MutableList<T>.takeAndClear(): List<T> = toList().also { clear() }
+
+  private fun getRemainingPagesUrls(firstPage: GiteeResponsePage<*>, nextLink: String): List<String>? {
+    val nextPageNumber = getPageNumber(nextLink) ?: return null
+    val lastPageNumber = firstPage.lastLink?.let(::getPageNumber) ?: firstPage.totalPages ?: return null
+    if (lastPageNumber < nextPageNumber) return null
+    return (nextPageNumber..lastPageNumber).map { nextLink.replace(PAGE_PARAMETER_REGEX, "$1page=$it") }
+  }
+
+  private fun getPageNumber(url: String): Int? = PAGE_PARAMETER_REGEX.find(url)?.groupValues?.get(2)?.toIntOrNull()
+
   @Throws(IOException::class)
   @JvmStatic
   fun <T> find(executor: GiteeApiRequestExecutor, indicator: ProgressIndicator, pagesRequest: Request<T>, predicate: Predicate<T>): T? {
@@ -60,6 +204,10 @@ object GiteeApiPagesLoader {
     return result
   }
 
+  private const val DEFAULT_MAX_CONCURRENT_REQUESTS = 4
+  private const val STREAMING_CHUNK_SIZE = 20
+  private val PAGE_PARAMETER_REGEX = Regex("([?&])page=(\\d+)")
+
   class Request<T>(val initialRequest: GiteeApiRequest<GiteeResponsePage<T>>,
                    val urlRequestProvider: (String) -> GiteeApiRequest<GiteeResponsePage<T>>)
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import git4idea.repo.GitRepository
 import kotlinx.coroutines.runBlocking
 import cn.osc.gitee.api.GEGQLRequests
 import cn.osc.gitee.api.GiteeApiRequestExecutor
+import cn.osc.gitee.api.GiteeApiRequestPriority
 import cn.osc.gitee.api.util.SimpleGHGQLPagesLoader
 import cn.osc.gitee.authentication.accounts.GEAccountManager
 import cn.osc.gitee.authentication.accounts.GiteeProjectDefaultAccountHolder
@@ -84,7 +85,9 @@ internal class GEProtectedBranchRulesLoader : GitFetchHandler {
         val token = runBlocking { accountManager.findCredentials(account) } ?: continue
         val requestExecutor = service<GiteeApiRequestExecutor.Factory>().create(token)
 
-        SimpleGHGQLPagesLoader(requestExecutor, { GEGQLRequests.Repo.getProtectionRules(repositoryMapping.repository) })
+        SimpleGHGQLPagesLoader(requestExecutor, {
+          GEGQLRequests.Repo.getProtectionRules(repositoryMapping.repository).also { it.withPriority(GiteeApiRequestPriority.BACKGROUND) }
+        })
           .loadAll(SensitiveProgressWrapper((indicator)))
           .forEach { rule -> branchProtectionPatterns.add(PatternUtil.convertToRegex(rule.pattern)) }
       }
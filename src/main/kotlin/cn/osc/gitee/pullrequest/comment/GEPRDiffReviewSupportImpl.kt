@@ -6,6 +6,7 @@ import com.intellij.diff.tools.fragmented.UnifiedDiffViewer
 import com.intellij.diff.tools.simple.SimpleOnesideDiffViewer
 import com.intellij.diff.tools.util.base.DiffViewerBase
 import com.intellij.diff.tools.util.side.TwosideTextDiffViewer
+import com.intellij.diff.util.Side
 import com.intellij.execution.process.ProcessIOExecutorService
 import com.intellij.openapi.Disposable
 import com.intellij.openapi.diff.impl.patch.PatchReader
@@ -141,28 +142,45 @@ class GEPRDiffReviewSupportImpl(private val project: Project,
   }
 
   private fun doLoadReviewThreads(model: GECompletableFutureLoadingModel<List<GEPRDiffReviewThreadMapping>>) {
-    model.future = reviewDataProvider.loadReviewThreads().thenApplyAsync(Function {
-      it.mapNotNull(::mapThread)
-    }, ProcessIOExecutorService.INSTANCE)
+    model.future = reviewDataProvider.loadReviewThreads().thenApplyAsync(Function(::mapThreads), ProcessIOExecutorService.INSTANCE)
   }
 
-  private fun mapThread(thread: GEPullRequestReviewThread): GEPRDiffReviewThreadMapping? {
-    val originalCommitSha = thread.originalCommit?.oid ?: return null
-    if (!diffData.contains(originalCommitSha, thread.path)) return null
+  /**
+   * Maps the threads of the file, threads left on the same commit are moved to this diff together
+   */
+  private fun mapThreads(threads: List<GEPullRequestReviewThread>): List<GEPRDiffReviewThreadMapping> {
+    val fileThreads = threads.filter { thread ->
+      thread.originalCommit?.oid?.let { diffData.contains(it, thread.path) } ?: false
+    }
 
-    val (side, line) = when (diffData) {
-      is GEPRChangeDiffData.Cumulative -> thread.side to thread.line - 1
+    val mappedPositions: Map<GEPullRequestReviewThread, Pair<Side, Int>?> = when (diffData) {
+      is GEPRChangeDiffData.Cumulative -> fileThreads.associateWith { it.side to it.line - 1 }
       is GEPRChangeDiffData.Commit -> {
-        val patchReader = PatchReader(GEPatchHunkUtil.createPatchFromHunk(thread.path, thread.diffHunk))
-        patchReader.readTextPatches()
-        val patchHunk = patchReader.textPatches[0].hunks.lastOrNull() ?: return null
-        val position = GEPatchHunkUtil.getHunkLinesCount(patchHunk) - 1
-        val (unmappedSide, unmappedLine) = GEPatchHunkUtil.findSideFileLineFromHunkLineIndex(patchHunk, position) ?: return null
-        diffData.mapPosition(originalCommitSha, unmappedSide, unmappedLine) ?: return null
+        val result = HashMap<GEPullRequestReviewThread, Pair<Side, Int>?>()
+        for ((commitSha, commitThreads) in fileThreads.groupBy { it.originalCommit!!.oid }) {
+          val unmapped = commitThreads.mapNotNull { thread -> findOriginalPosition(thread)?.let { thread to it } }
+          val mapped = diffData.mapPositions(commitSha, unmapped.map { it.second })
+          unmapped.forEachIndexed { index, (thread, _) -> result[thread] = mapped[index] }
+        }
+        result
       }
     }
 
-    return GEPRDiffReviewThreadMapping(side, line, thread)
+    return fileThreads.mapNotNull { thread ->
+      val (side, line) = mappedPositions[thread] ?: return@mapNotNull null
+      GEPRDiffReviewThreadMapping(side, line, thread)
+    }
+  }
+
+  /**
+   * Position of the thread in the file at its original commit, taken from the last line of its diff hunk
+   */
+  private fun findOriginalPosition(thread: GEPullRequestReviewThread): Pair<Side, Int>? {
+    val patchReader = PatchReader(GEPatchHunkUtil.createPatchFromHunk(thread.path, thread.diffHunk))
+    patchReader.readTextPatches()
+    val patchHunk = patchReader.textPatches[0].hunks.lastOrNull() ?: return null
+    val position = GEPatchHunkUtil.getHunkLinesCount(patchHunk) - 1
+    return GEPatchHunkUtil.findSideFileLineFromHunkLineIndex(patchHunk, position)
   }
 
   private fun updateReviewThreads() {
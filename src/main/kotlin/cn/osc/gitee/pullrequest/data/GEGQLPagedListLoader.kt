@@ -3,16 +3,21 @@ package cn.osc.gitee.pullrequest.data
 
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
+import cn.osc.gitee.api.GiteeApiRequestPriority
 import cn.osc.gitee.api.util.SimpleGHGQLPagesLoader
 
 open class GEGQLPagedListLoader<T>(progressManager: ProgressManager,
                                    private val loader: SimpleGHGQLPagesLoader<T>)
   : GEListLoaderBase<T>(progressManager) {
 
-  override fun canLoadMore() = !loading && (loader.hasNext || error != null)
+  override fun canLoadMore() = !loading && (hasPrefetchedPages || loader.hasNext || error != null)
 
   override fun doLoadMore(indicator: ProgressIndicator, update: Boolean) = loader.loadNext(indicator, update)
 
+  override fun canPrefetch() = loader.hasNext
+
+  override fun doPrefetch(indicator: ProgressIndicator) = loader.loadNext(indicator, priority = GiteeApiRequestPriority.BACKGROUND)
+
   override fun reset() {
     loader.reset()
     super.reset()
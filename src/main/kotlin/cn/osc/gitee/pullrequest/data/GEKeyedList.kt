@@ -0,0 +1,88 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+/**
+ * List of loaded items with the positions of the items indexed by their ids,
+ * so a reloaded item is found and replaced in place instead of being added once more.
+ */
+internal class GEKeyedList<T>(private val getId: (T) -> Any) {
+
+  val items = ArrayList<T>()
+  private val indices = HashMap<Any, Int>()
+
+  fun indexOf(item: T): Int = indices[getId(item)] ?: -1
+
+  fun set(index: Int, item: T) {
+    val previous = items.set(index, item)
+    indices.remove(getId(previous))
+    indices[getId(item)] = index
+  }
+
+  fun removeAt(index: Int): T {
+    val item = items.removeAt(index)
+    indices.remove(getId(item))
+    for (i in index until items.size) {
+      indices[getId(items[i])] = i
+    }
+    return item
+  }
+
+  fun insert(index: Int, newItems: List<T>) {
+    items.addAll(index, newItems)
+    for (i in index until items.size) {
+      indices[getId(items[i])] = i
+    }
+  }
+
+  fun clear() {
+    items.clear()
+    indices.clear()
+  }
+
+  /**
+   * Replaces the items which are already in the list and appends the new ones in the order of [newItems]
+   */
+  fun upsert(newItems: List<T>): Delta {
+    val addedStart = items.size
+    val updated = mutableListOf<Int>()
+    for (item in newItems) {
+      val id = getId(item)
+      val index = indices[id]
+      if (index == null) {
+        indices[id] = items.size
+        items.add(item)
+      }
+      else {
+        items[index] = item
+        if (index < addedStart) updated.add(index)
+      }
+    }
+    return Delta(toRanges(updated), if (items.size > addedStart) addedStart else -1)
+  }
+
+  /**
+   * Changes made by [upsert]: ranges of the replaced items and the start of the appended ones, -1 if nothing was appended
+   */
+  class Delta(val updatedRanges: List<IntRange>, val addedStart: Int)
+
+  companion object {
+    private fun toRanges(indices: MutableList<Int>): List<IntRange> {
+      if (indices.isEmpty()) return emptyList()
+      indices.sort()
+      val ranges = mutableListOf<IntRange>()
+      var start = indices[0]
+      var end = start
+      for (index in indices.subList(1, indices.size)) {
+        if (index <= end + 1) {
+          end = maxOf(end, index)
+          continue
+        }
+        ranges.add(start..end)
+        start = index
+        end = index
+      }
+      ranges.add(start..end)
+      return ranges
+    }
+  }
+}
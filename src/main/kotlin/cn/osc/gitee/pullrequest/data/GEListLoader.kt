@@ -43,7 +43,19 @@ interface GEListLoader<T> : Disposable {
   @JvmDefaultWithCompatibility
   interface ListDataListener : EventListener {
     fun onDataAdded(startIdx: Int) {}
+
+    /**
+     * Items from [startIdx] until [endIdx] were inserted among the loaded items
+     */
+    fun onDataInserted(startIdx: Int, endIdx: Int) {}
     fun onDataUpdated(idx: Int) {}
+
+    /**
+     * Items from [startIdx] until [endIdx] were replaced with their reloaded versions
+     */
+    fun onDataUpdated(startIdx: Int, endIdx: Int) {
+      for (idx in startIdx until endIdx) onDataUpdated(idx)
+    }
     fun onDataRemoved(data: Any) {}
     fun onAllDataRemoved() {}
   }
@@ -8,9 +8,12 @@ import com.intellij.openapi.Disposable
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.util.EventDispatcher
+import com.intellij.util.concurrency.annotations.RequiresEdt
 import com.intellij.collaboration.ui.SimpleEventListener
 import cn.osc.gitee.util.NonReusableEmptyProgressIndicator
+import java.util.*
 import java.util.concurrent.CompletableFuture
 import kotlin.properties.Delegates
 
@@ -18,7 +21,8 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
   : GEListLoader<T> {
 
   private var lastFuture = CompletableFuture.completedFuture(emptyList<T>())
-  private var progressIndicator = NonReusableEmptyProgressIndicator()
+  protected var progressIndicator = NonReusableEmptyProgressIndicator()
+    private set
 
   private val loadingStateChangeEventDispatcher = EventDispatcher.create(SimpleEventListener::class.java)
   override var loading: Boolean by Delegates.observable(false) { _, _, _ ->
@@ -30,8 +34,15 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
     errorChangeEventDispatcher.multicaster.eventOccurred()
   }
 
-  private val dataEventDispatcher = EventDispatcher.create(GEListLoader.ListDataListener::class.java)
-  override val loadedData = ArrayList<T>()
+  protected val dataEventDispatcher = EventDispatcher.create(GEListLoader.ListDataListener::class.java)
+  private val store = GEKeyedList<T>(::getId)
+  override val loadedData: List<T>
+    get() = store.items
+
+  // pages loaded ahead of the shown ones, in the order of loading
+  private val prefetchedPages = ArrayDeque<CompletableFuture<List<T>>>()
+  protected val hasPrefetchedPages: Boolean
+    get() = prefetchedPages.isNotEmpty()
 
   override fun canLoadMore() = !loading && (error != null)
 
@@ -41,16 +52,25 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
     val indicator = progressIndicator
     if (canLoadMore() || update) {
       loading = true
-      requestLoadMore(indicator, update).handleOnEdt { list, error ->
+      val prefetchedPage = if (update) null else prefetchedPages.pollFirst()
+      val page = prefetchedPage ?: if (update) requestUpdate(indicator) else requestLoadMore(indicator, false)
+      page.handleOnEdt { list, error ->
         if (indicator.isCanceled) return@handleOnEdt
         loading = false
         if (error != null) {
-          if (!CompletableFutureUtil.isCancellation(error)) this.error = error
+          if (CompletableFutureUtil.isCancellation(error)) return@handleOnEdt
+          // failed prefetch did not move the loader, so the same page is requested again, now on behalf of the user
+          if (prefetchedPage != null) loadMore(false)
+          else this.error = error
         }
         else if (list != null) {
-          val startIdx = loadedData.size
-          loadedData.addAll(list)
-          dataEventDispatcher.multicaster.onDataAdded(startIdx)
+          // refreshed and shifted pages contain the items which are already loaded
+          val delta = store.upsert(list)
+          for (range in delta.updatedRanges) {
+            dataEventDispatcher.multicaster.onDataUpdated(range.first, range.last + 1)
+          }
+          if (delta.addedStart >= 0) dataEventDispatcher.multicaster.onDataAdded(delta.addedStart)
+          schedulePrefetch()
         }
       }
     }
@@ -65,20 +85,131 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
     return lastFuture
   }
 
+  /**
+   * The update is loaded after the pages which are already prefetched, so their items are added before the updated ones
+   */
+  private fun requestUpdate(indicator: ProgressIndicator): CompletableFuture<List<T>> {
+    val prefetched = prefetchedPages.fold(CompletableFuture.completedFuture(emptyList<T>())) { items, page ->
+      // a failed prefetch did not move the loader, so its items come with the next pages
+      items.thenCombine(page.handle { list, _ -> list.orEmpty() }) { loaded, pageItems -> loaded + pageItems }
+    }
+    prefetchedPages.clear()
+    return prefetched.thenCombine(requestLoadMore(indicator, true)) { loaded, updated -> loaded + updated.orEmpty() }
+  }
+
   protected abstract fun doLoadMore(indicator: ProgressIndicator, update: Boolean): List<T>?
 
+  /**
+   * Loads the next pages in the background up to the prefetch depth ahead of the loaded tail while the shown ones are being read,
+   * so [loadMore] finds the next page already loaded instead of waiting for it at the end of the list.
+   * The depth doesn't depend on the visible part of the list.
+   */
+  @RequiresEdt
+  protected fun schedulePrefetch() {
+    if (Disposer.isDisposed(this) || error != null) return
+    val indicator = progressIndicator
+    val depth = Registry.intValue("gitee.list.prefetch.depth", 1).coerceIn(0, MAX_PREFETCH_DEPTH)
+    while (prefetchedPages.size < depth && canPrefetch()) {
+      val page = lastFuture.handle { _, _ -> }.thenCompose {
+        progressManager.submitIOTask(indicator) { doPrefetch(it) ?: emptyList() }
+      }
+      // a failed prefetch is handled when the page is taken
+      lastFuture = page.handle { _, _ -> emptyList<T>() }
+      prefetchedPages.add(page)
+    }
+  }
+
+  /**
+   * True if there are more pages to load ahead
+   */
+  protected open fun canPrefetch(): Boolean = false
+
+  /**
+   * Loads the next page ahead with a priority which yields to the requests the user waits for
+   */
+  protected open fun doPrefetch(indicator: ProgressIndicator): List<T>? = null
+
+  /**
+   * Identifies the same item in the loaded and in the reloaded data, the loaded models are equal by their ids
+   */
+  protected open fun getId(item: T): Any = item as Any
+
   override fun updateData(item: T) {
-    val index = loadedData.indexOfFirst { it == item }
+    val index = store.indexOf(item)
     if (index >= 0) {
-      loadedData[index] = item
+      store.set(index, item)
       dataEventDispatcher.multicaster.onDataUpdated(index)
     }
   }
 
+  /**
+   * Applies the changes of the synchronized [items] to the loaded list in place: the loaded items whose [getId] is in [removedIds]
+   * are removed, the loaded ones among [items] are replaced and the list is reordered with [comparator].
+   * New items are inserted in the order of [comparator], those ordered after the last loaded item only when the list is [complete],
+   * otherwise they come with the next pages.
+   *
+   * @return false if there are new items but the list order is unknown, so they can't be inserted
+   */
+  @RequiresEdt
+  fun patchData(items: List<T>, removedIds: Set<Any>, comparator: Comparator<in T>?, complete: Boolean): Boolean {
+    val changed = items.associateBy(::getId)
+    val kept = store.items.filter { getId(it) !in removedIds }.map { changed[getId(it)] ?: it }
+    val keptIds = kept.mapTo(HashSet(), ::getId)
+    val new = changed.values.filter { getId(it) !in keptIds && getId(it) !in removedIds }
+    if (comparator == null) {
+      replaceData(kept)
+      return new.isEmpty()
+    }
+
+    val last = kept.lastOrNull()
+    val inserted = when {
+      complete -> new
+      last == null -> emptyList()
+      else -> new.filter { comparator.compare(it, last) <= 0 }
+    }
+    replaceData((kept + inserted).sortedWith(comparator))
+    return true
+  }
+
+  /**
+   * Turns the loaded items into [newItems] in place: the items which are gone are removed, the reloaded ones are replaced
+   * and moved to their new positions and the new ones are inserted, so the listeners see only the differences
+   */
+  @RequiresEdt
+  protected fun replaceData(newItems: List<T>) {
+    val items = newItems.distinctBy(::getId)
+    if (store.items.isEmpty()) {
+      store.upsert(items)
+      if (store.items.isNotEmpty()) dataEventDispatcher.multicaster.onDataAdded(0)
+      return
+    }
+
+    val ids = items.mapTo(HashSet(), ::getId)
+    for (index in store.items.indices.reversed()) {
+      if (getId(store.items[index]) !in ids) {
+        dataEventDispatcher.multicaster.onDataRemoved(store.removeAt(index) as Any)
+      }
+    }
+    for ((index, item) in items.withIndex()) {
+      val loadedIndex = store.indexOf(item)
+      when {
+        loadedIndex == index -> {
+          store.set(index, item)
+          dataEventDispatcher.multicaster.onDataUpdated(index)
+        }
+        else -> {
+          if (loadedIndex > index) dataEventDispatcher.multicaster.onDataRemoved(store.removeAt(loadedIndex) as Any)
+          store.insert(index, listOf(item))
+          dataEventDispatcher.multicaster.onDataInserted(index, index + 1)
+        }
+      }
+    }
+  }
+
   override fun removeData(predicate: (T) -> Boolean) {
-    val (index, data) = loadedData.withIndex().find { predicate(it.value) } ?: return
+    val index = loadedData.indexOfFirst(predicate)
     if (index >= 0) {
-      loadedData.removeAt(index)
+      val data = store.removeAt(index)
       dataEventDispatcher.multicaster.onDataRemoved(data as Any)
     }
   }
@@ -89,9 +220,10 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
     }
     progressIndicator.cancel()
     progressIndicator = NonReusableEmptyProgressIndicator()
+    prefetchedPages.clear()
     error = null
     loading = false
-    loadedData.clear()
+    store.clear()
     dataEventDispatcher.multicaster.onAllDataRemoved()
   }
 
@@ -105,4 +237,8 @@ abstract class GEListLoaderBase<T>(protected val progressManager: ProgressManage
     SimpleEventListener.addDisposableListener(errorChangeEventDispatcher, disposable, listener)
 
   override fun dispose() = progressIndicator.cancel()
+
+  companion object {
+    private const val MAX_PREFETCH_DEPTH = 3
+  }
 }
\ No newline at end of file
@@ -3,21 +3,21 @@ package cn.osc.gitee.pullrequest.data
 
 import com.intellij.diff.util.Range
 import com.intellij.diff.util.Side
-import com.intellij.openapi.diff.impl.patch.TextFilePatch
 import cn.osc.gitee.util.GEPatchHunkUtil
+import java.util.concurrent.ConcurrentHashMap
 
 sealed class GEPRChangeDiffData(val commitSha: String, val filePath: String,
-                                private val patch: TextFilePatch, private val cumulativePatch: TextFilePatch,
+                                private val patch: GEPRLazyTextFilePatch, private val cumulativePatch: GEPRLazyTextFilePatch,
                                 protected val fileHistory: GEPRFileHistory) {
 
   val diffRanges: List<Range> by lazy(LazyThreadSafetyMode.NONE) {
-    patch.hunks.map(GEPatchHunkUtil::getRange)
+    patch.materialize().hunks.map(GEPatchHunkUtil::getRange)
   }
   val diffRangesWithoutContext: List<Range> by lazy(LazyThreadSafetyMode.NONE) {
-    patch.hunks.map(GEPatchHunkUtil::getChangeOnlyRanges).flatten()
+    patch.materialize().hunks.map(GEPatchHunkUtil::getChangeOnlyRanges).flatten()
   }
   val linesMapper: GEPRChangedFileLinesMapper by lazy(LazyThreadSafetyMode.NONE) {
-    GEPRChangedFileLinesMapperImpl(cumulativePatch)
+    GEPRChangedFileLinesMapperImpl(cumulativePatch.materialize())
   }
 
   fun contains(commitSha: String, filePath: String): Boolean {
@@ -25,69 +25,36 @@ sealed class GEPRChangeDiffData(val commitSha: String, val filePath: String,
   }
 
   class Commit(commitSha: String, filePath: String,
-               patch: TextFilePatch, cumulativePatch: TextFilePatch,
+               patch: GEPRLazyTextFilePatch, cumulativePatch: GEPRLazyTextFilePatch,
                fileHistory: GEPRFileHistory)
     : GEPRChangeDiffData(commitSha, filePath,
                          patch, cumulativePatch,
                          fileHistory) {
 
-    fun mapPosition(fromCommitSha: String,
-                    side: Side, line: Int): Pair<Side, Int>? {
-
-      val comparison = fileHistory.compare(fromCommitSha, commitSha)
-      if (comparison == 0) return side to line
-      if (comparison < 0) {
-        val patches = fileHistory.getPatches(fromCommitSha, commitSha, false, true)
-        return transferLine(patches, side, line, false)
-      }
-      else {
-        val patches = fileHistory.getPatches(commitSha, fromCommitSha, true, false)
-        return transferLine(patches, side, line, true)
-      }
-    }
-
-    private fun transferLine(patchChain: List<TextFilePatch>, side: Side, line: Int, rightToLeft: Boolean): Pair<Side, Int>? {
-      // points to the same patch
-      if (patchChain.isEmpty()) return side to line
+    // commit sha -> transfer of the lines from the file in that commit to the file in this one
+    private val lineTransfers = ConcurrentHashMap<String, GEPRLineTransfer>()
 
-      val patches = if (rightToLeft) patchChain.asReversed() else patchChain
-      val transferFrom = if (rightToLeft) Side.RIGHT else Side.LEFT
-
-      var currentSide: Side = side
-      var currentLine: Int = line
+    fun mapPosition(fromCommitSha: String,
+                    side: Side, line: Int): Pair<Side, Int>? = getLineTransfer(fromCommitSha).transfer(side, line)
 
-      for (patch in patches) {
-        if (currentSide == transferFrom) {
-          val changeOnlyRanges = patch.hunks.map { hunk ->
-            val ranges = GEPatchHunkUtil.getChangeOnlyRanges(hunk)
-            if (rightToLeft) ranges.map { reverseRange(it) } else ranges
-          }.flatten()
+    /**
+     * Same as [mapPosition] for all [positions] from the same commit, the result is in the same order
+     */
+    fun mapPositions(fromCommitSha: String, positions: List<Pair<Side, Int>>): List<Pair<Side, Int>?> =
+      getLineTransfer(fromCommitSha).transfer(positions)
 
-          var offset = 0
-          loop@ for (range in changeOnlyRanges) {
-            when {
-              currentLine < range.start1 ->
-                break@loop
-              currentLine in range.start1 until range.end1 ->
-                return null
-              currentLine >= range.end1 ->
-                offset += (range.end2 - range.start2) - (range.end1 - range.start1)
-            }
-          }
-          currentLine += offset
-        }
-        else {
-          currentSide = transferFrom
-        }
-      }
-      return currentSide to currentLine
+    private fun getLineTransfer(fromCommitSha: String) = lineTransfers.getOrPut(fromCommitSha) {
+      val comparison = fileHistory.compare(fromCommitSha, commitSha)
+      when {
+        comparison == 0 -> GEPRLineTransfer.IDENTITY
+        comparison < 0 -> fileHistory.getPatches(fromCommitSha, commitSha, false, true)?.let { GEPRLineTransfer.create(it, false) }
+        else -> fileHistory.getPatches(commitSha, fromCommitSha, true, false)?.let { GEPRLineTransfer.create(it, true) }
+      } ?: GEPRLineTransfer.LOST
     }
-
-    private fun reverseRange(range: Range) = Range(range.start2, range.end2, range.start1, range.end1)
   }
 
   class Cumulative(commitSha: String, filePath: String,
-                   patch: TextFilePatch,
+                   patch: GEPRLazyTextFilePatch,
                    fileHistory: GEPRFileHistory)
     : GEPRChangeDiffData(commitSha, filePath,
                          patch, patch,
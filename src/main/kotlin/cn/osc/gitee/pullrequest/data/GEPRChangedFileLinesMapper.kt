@@ -6,4 +6,14 @@ import com.intellij.diff.util.Side
 interface GEPRChangedFileLinesMapper {
   fun findDiffLine(side: Side, fileLineIndex: Int): Int?
   fun findFileLocation(diffLineIndex: Int): Pair<Side, Int>?
+
+  /**
+   * Same as [findDiffLine] for every line of [fileLineIndexes], the result is in the same order
+   */
+  fun findDiffLines(side: Side, fileLineIndexes: List<Int>): List<Int?> = fileLineIndexes.map { findDiffLine(side, it) }
+
+  /**
+   * Same as [findFileLocation] for every line of [diffLineIndexes], the result is in the same order
+   */
+  fun findFileLocations(diffLineIndexes: List<Int>): List<Pair<Side, Int>?> = diffLineIndexes.map { findFileLocation(it) }
 }
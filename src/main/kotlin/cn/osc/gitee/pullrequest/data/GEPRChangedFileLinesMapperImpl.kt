@@ -2,55 +2,150 @@
 package cn.osc.gitee.pullrequest.data
 
 import com.intellij.diff.util.Side
-import com.intellij.openapi.diff.impl.patch.PatchHunk
+import com.intellij.openapi.diff.impl.patch.PatchLine
 import com.intellij.openapi.diff.impl.patch.TextFilePatch
-import cn.osc.gitee.util.GEPatchHunkUtil
 
-class GEPRChangedFileLinesMapperImpl(private val diff: TextFilePatch) : GEPRChangedFileLinesMapper {
+/**
+ * Maps the lines with the tables built once for the patch:
+ * file line ranges of every hunk on both sides with the diff lines of their file lines, and the file location of every diff line.
+ * Diff lines count the hunk headers and the "No newline" markers, like the positions of the review comments do.
+ */
+class GEPRChangedFileLinesMapperImpl(diff: TextFilePatch) : GEPRChangedFileLinesMapper {
 
-  override fun findDiffLine(side: Side, fileLineIndex: Int): Int? {
-    val (hunk, offset) = findHunkWithOffset(side, fileLineIndex) ?: return null
-    val hunkLineIndex = GEPatchHunkUtil.findHunkLineIndexFromFileSideLineIndex(hunk, side, fileLineIndex) ?: return null
+  private val left = SideTable(diff, Side.LEFT)
+  private val right = SideTable(diff, Side.RIGHT)
 
-    return offset + hunkLineIndex
-  }
+  // diff line -> side of the file line shown there or NO_SIDE, and the file line itself
+  private val diffLineSides: ByteArray
+  private val diffLineFileLines: IntArray
+
+  init {
+    val diffLinesCount = diff.hunks.sumOf { hunk -> hunk.lines.size + hunk.lines.count { it.isSuppressNewLine } + 1 }
+    diffLineSides = ByteArray(diffLinesCount)
+    diffLineFileLines = IntArray(diffLinesCount)
 
-  private fun findHunkWithOffset(side: Side, fileLineIndex: Int): Pair<PatchHunk, Int>? {
-    var diffLineCounter = 0
+    var diffLine = 0
     for (hunk in diff.hunks) {
-      val range = GEPatchHunkUtil.getRange(hunk)
-      val start = side.select(range.start1, range.start2)
-      val end = side.select(range.end1, range.end2)
+      diffLineSides[diffLine++] = NO_SIDE
 
-      if (fileLineIndex in start until end) {
-        return hunk to diffLineCounter
+      var lineLeft = hunk.startLineBefore
+      var lineRight = hunk.startLineAfter
+      for (line in hunk.lines) {
+        when (line.type) {
+          PatchLine.Type.REMOVE -> {
+            diffLineSides[diffLine] = LEFT_SIDE
+            diffLineFileLines[diffLine] = lineLeft++
+          }
+          PatchLine.Type.ADD -> {
+            diffLineSides[diffLine] = RIGHT_SIDE
+            diffLineFileLines[diffLine] = lineRight++
+          }
+          PatchLine.Type.CONTEXT -> {
+            diffLineSides[diffLine] = RIGHT_SIDE
+            diffLineFileLines[diffLine] = lineRight++
+            lineLeft++
+          }
+        }
+        diffLine++
+        //can't show comments on \No newline
+        if (line.isSuppressNewLine) diffLineSides[diffLine++] = NO_SIDE
       }
-
-      val hunkLinesCount = GEPatchHunkUtil.getHunkLinesCount(hunk)
-      diffLineCounter += hunkLinesCount
     }
-    return null
   }
 
+  override fun findDiffLine(side: Side, fileLineIndex: Int): Int? = side.select(left, right).findDiffLine(fileLineIndex)
+
   override fun findFileLocation(diffLineIndex: Int): Pair<Side, Int>? {
-    val (hunk, offset) = findHunkWithOffset(diffLineIndex) ?: return null
+    if (diffLineIndex !in diffLineSides.indices) return null
+    val side = when (diffLineSides[diffLineIndex]) {
+      LEFT_SIDE -> Side.LEFT
+      RIGHT_SIDE -> Side.RIGHT
+      else -> return null
+    }
+    return side to diffLineFileLines[diffLineIndex]
+  }
 
-    val hunkLineIndex = diffLineIndex - offset
-    if (hunkLineIndex == 0) return null
+  override fun findDiffLines(side: Side, fileLineIndexes: List<Int>): List<Int?> {
+    val table = side.select(left, right)
+    if (!table.sorted) return fileLineIndexes.map(table::findDiffLine)
 
-    return GEPatchHunkUtil.findSideFileLineFromHunkLineIndex(hunk, hunkLineIndex)
+    // walk the hunks once along the sorted lines
+    val result = arrayOfNulls<Int>(fileLineIndexes.size)
+    var hunk = 0
+    for (index in fileLineIndexes.indices.sortedBy { fileLineIndexes[it] }) {
+      val fileLine = fileLineIndexes[index]
+      while (hunk < table.size && table.ends[hunk] <= fileLine) hunk++
+      if (hunk < table.size) result[index] = table.findDiffLine(hunk, fileLine)
+    }
+    return result.asList()
   }
 
-  private fun findHunkWithOffset(diffLineIndex: Int): Pair<PatchHunk, Int>? {
-    var diffLineCounter = 0
-    for (hunk in diff.hunks) {
-      val hunkLinesCount = GEPatchHunkUtil.getHunkLinesCount(hunk)
-      diffLineCounter += hunkLinesCount
+  override fun findFileLocations(diffLineIndexes: List<Int>): List<Pair<Side, Int>?> = diffLineIndexes.map(::findFileLocation)
+
+  /**
+   * File line ranges of the hunks on one side and the diff lines of the file lines inside them
+   */
+  private class SideTable(diff: TextFilePatch, side: Side) {
+    val size = diff.hunks.size
+    val starts = IntArray(size)
+    val ends = IntArray(size)
+    // index of the first line of a hunk in diffLines
+    private val bases = IntArray(size)
+    private val diffLines: IntArray
+    // whether hunks go one after another, so that they can be binary searched
+    val sorted: Boolean
 
-      if (diffLineIndex < diffLineCounter) {
-        return hunk to (diffLineCounter - hunkLinesCount)
+    init {
+      val sideLines = ArrayList<Int>()
+      var diffLine = 0
+      var sorted = true
+      for ((index, hunk) in diff.hunks.withIndex()) {
+        val start = side.select(hunk.startLineBefore, hunk.startLineAfter)
+        starts[index] = start
+        bases[index] = sideLines.size
+        if (index > 0 && start < ends[index - 1]) sorted = false
+
+        // header
+        diffLine++
+        for (line in hunk.lines) {
+          if (line.type == PatchLine.Type.CONTEXT ||
+              line.type == side.select(PatchLine.Type.REMOVE, PatchLine.Type.ADD)) {
+            sideLines.add(diffLine)
+          }
+          diffLine += if (line.isSuppressNewLine) 2 else 1
+        }
+        ends[index] = start + sideLines.size - bases[index]
+      }
+      diffLines = sideLines.toIntArray()
+      this.sorted = sorted
+    }
+
+    fun findDiffLine(fileLine: Int): Int? {
+      val hunk = if (sorted) {
+        var found = starts.binarySearch(fileLine)
+        // the last hunk starting at or before the line
+        if (found >= 0) {
+          while (found + 1 < size && starts[found + 1] == fileLine) found++
+          found
+        }
+        else -found - 2
+      }
+      else {
+        (0 until size).find { fileLine in starts[it] until ends[it] } ?: return null
       }
+      if (hunk < 0) return null
+      return findDiffLine(hunk, fileLine)
     }
-    return null
+
+    fun findDiffLine(hunk: Int, fileLine: Int): Int? {
+      if (fileLine !in starts[hunk] until ends[hunk]) return null
+      return diffLines[bases[hunk] + fileLine - starts[hunk]]
+    }
+  }
+
+  companion object {
+    private const val NO_SIDE: Byte = 0
+    private const val LEFT_SIDE: Byte = 1
+    private const val RIGHT_SIDE: Byte = 2
   }
-}
\ No newline at end of file
+}
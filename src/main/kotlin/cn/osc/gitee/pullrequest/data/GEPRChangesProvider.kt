@@ -12,4 +12,9 @@ interface GEPRChangesProvider {
   fun findChangeDiffData(change: Change): GEPRChangeDiffData?
 
   fun findCumulativeChange(commitSha: String, filePath: String): Change?
+
+  /**
+   * Drops the parsed hunks of the patches, they are materialized again when requested
+   */
+  fun releaseMaterializedPatches()
 }
\ No newline at end of file
@@ -3,9 +3,10 @@ package cn.osc.gitee.pullrequest.data
 
 import com.google.common.graph.Graph
 import com.google.common.graph.Traverser
+import com.intellij.concurrency.JobLauncher
 import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.diff.impl.patch.FilePatch
-import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.vcs.FilePath
 import com.intellij.openapi.vcs.changes.Change
 import com.intellij.util.containers.CollectionFactory
@@ -23,7 +24,8 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
                               private val mergeBaseRef: String,
                               commitsGraph: Graph<GECommit>,
                               private val lastCommit: GECommit,
-                              patchesByCommits: Map<GECommit, Pair<List<FilePatch>, List<FilePatch>>>)
+                              patchesByCommits: Map<GECommit, Pair<List<FilePatch>, List<FilePatch>>>,
+                              private val cachedPatchesKeys: Collection<GEPRPatchCache.Key>)
   : GEPRChangesProvider {
 
   override val changes = mutableListOf<Change>()
@@ -40,18 +42,39 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
     override fun hashCode(change: Change?) = Objects.hash(change, change?.beforeRevision, change?.afterRevision)
   })
 
+  // commit sha -> position of the commit in the linear history
+  private val commitOrdinals = HashMap<String, Int>()
+  // file path -> cumulative changes of the files which had this path, with the range of commits in which they had it
+  private val cumulativeChangesByPath = HashMap<String, MutableList<CumulativeChangeRange>>()
+  // file path -> cumulative changes of the files which had this path in some commit, for the history with merges
+  private val cumulativeChangesByTrackedPath = HashMap<String, MutableList<Change>>()
+
   override fun findChangeDiffData(change: Change) = diffDataByChange[change]
 
   override fun findCumulativeChange(commitSha: String, filePath: String): Change? {
-    return diffDataByChange.entries.find {
-      it.value is GEPRChangeDiffData.Cumulative && it.value.contains(commitSha, filePath)
-    }?.key
+    if (linearHistory) {
+      val ordinal = commitOrdinals[commitSha] ?: return null
+      return cumulativeChangesByPath[filePath]?.find { ordinal in it.ordinals }?.change
+    }
+
+    return cumulativeChangesByTrackedPath[filePath]?.find { diffDataByChange[it]?.contains(commitSha, filePath) == true }
   }
 
+  override fun releaseMaterializedPatches() {
+    lazyPatches.forEach(GEPRLazyTextFilePatch::release)
+    // only the patches of this pull request are dropped from the cache, the patches of the others stay in memory
+    GEPRPatchCache.getInstanceIfEnabled()?.release(cachedPatchesKeys)
+  }
+
+  // the same patch can be shared by several commits
+  private val lazyPatches: MutableSet<GEPRLazyTextFilePatch> = Collections.newSetFromMap(IdentityHashMap())
+
   init {
     val commitsBySha = LinkedHashMap<String, GECommitWithPatches>()
     Traverser.forGraph(commitsGraph).depthFirstPostOrder(lastCommit).forEach {
       val (commitPatches, cumulativePatches) = patchesByCommits.getValue(it)
+      commitPatches.filterIsInstanceTo(lazyPatches)
+      cumulativePatches.filterIsInstanceTo(lazyPatches)
       commitsBySha[it.oid] = GECommitWithPatches(it, commitPatches, cumulativePatches)
     }
 
@@ -69,27 +92,29 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
   }
 
   private fun initForLinearHistory(commitsBySha: Map<String, GECommitWithPatches>) {
-    val commitsWithPatches = commitsBySha.values
+    val commitsWithPatches = commitsBySha.values.toList()
     val fileHistoriesByLastKnownFilePath = mutableMapOf<String, GEPRMutableLinearFileHistory>()
 
-    var previousCommitSha = mergeBaseRef
+    val changesOfCommits = createCommitsChanges(commitsWithPatches) { index ->
+      if (index == 0) mergeBaseRef else commitsWithPatches[index - 1].sha
+    }
 
-    val commitsHashes = commitsWithPatches.map { it.sha }
-    for (commitWithPatches in commitsWithPatches) {
+    commitsWithPatches.forEachIndexed { ordinal, commit -> commitOrdinals[commit.sha] = ordinal }
+    for ((ordinal, commitWithPatches) in commitsWithPatches.withIndex()) {
 
       val commitSha = commitWithPatches.sha
-      val commitChanges = mutableListOf<Change>()
+      val commitChanges = changesOfCommits[ordinal]
+      val cumulativePatches = PatchesByPath(commitWithPatches.cumulativePatches)
 
-      for (patch in commitWithPatches.commitPatches) {
-        val change = createChangeFromPatch(previousCommitSha, commitSha, patch)
-        commitChanges.add(change)
+      for ((index, patch) in commitWithPatches.commitPatches.withIndex()) {
+        val change = commitChanges[index]
 
-        if (patch is TextFilePatch) {
+        if (patch is GEPRLazyTextFilePatch) {
           val beforePath = patch.beforeName
           val afterPath = patch.afterName
 
           val historyBefore = beforePath?.let { fileHistoriesByLastKnownFilePath.remove(it) }
-          val fileHistory = (historyBefore ?: GEPRMutableLinearFileHistory(commitsHashes)).apply {
+          val fileHistory = (historyBefore ?: GEPRMutableLinearFileHistory(commitOrdinals)).apply {
             append(commitSha, patch)
           }
           if (afterPath != null) {
@@ -97,7 +122,7 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
           }
           val firstKnownPath = fileHistory.firstKnownFilePath
 
-          val cumulativePatch = findPatchByFilePaths(commitWithPatches.cumulativePatches, firstKnownPath, afterPath) as? TextFilePatch
+          val cumulativePatch = cumulativePatches.find(firstKnownPath, afterPath) as? GEPRLazyTextFilePatch
           if (cumulativePatch == null) {
             LOG.debug("Unable to find cumulative patch for commit patch")
             continue
@@ -107,7 +132,6 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
         }
       }
       changesByCommits[commitWithPatches.commit.oid] = commitChanges
-      previousCommitSha = commitSha
     }
 
     val fileHistoriesBySummaryFilePath = fileHistoriesByLastKnownFilePath.mapKeys {
@@ -118,7 +142,7 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
       val change = createChangeFromPatch(mergeBaseRef, lastCommit.oid, patch)
       changes.add(change)
 
-      if (patch is TextFilePatch) {
+      if (patch is GEPRLazyTextFilePatch) {
         val filePath = patch.filePath
         val fileHistory = fileHistoriesBySummaryFilePath[filePath]
         if (fileHistory == null) {
@@ -127,29 +151,81 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
         }
 
         diffDataByChange[change] = GEPRChangeDiffData.Cumulative(lastCommit.oid, filePath, patch, fileHistory)
+        for ((ordinals, path) in fileHistory.getPathRanges()) {
+          cumulativeChangesByPath.getOrPut(path, ::mutableListOf).add(CumulativeChangeRange(ordinals, change))
+        }
       }
     }
   }
 
   private fun initForHistoryWithMerges(commitsBySha: Map<String, GECommitWithPatches>) {
-    for (commitWithPatches in commitsBySha.values) {
-      val previousCommitSha = commitWithPatches.parents.find { commitsBySha.contains(it) } ?: mergeBaseRef
-      val commitSha = commitWithPatches.sha
-      val commitChanges = commitWithPatches.commitPatches.map { createChangeFromPatch(previousCommitSha, commitSha, it) }
-      changesByCommits[commitWithPatches.commit.oid] = commitChanges
+    val commitsWithPatches = commitsBySha.values.toList()
+    val reachability = GEPRCommitsReachability(commitsWithPatches)
+    val changesOfCommits = createCommitsChanges(commitsWithPatches) { index ->
+      reachability.getFirstParent(index).takeIf { it >= 0 }?.let { commitsWithPatches[it].sha } ?: mergeBaseRef
+    }
+    commitsWithPatches.forEachIndexed { index, commitWithPatches ->
+      changesByCommits[commitWithPatches.commit.oid] = changesOfCommits[index]
     }
 
-    for (patch in commitsBySha.getValue(lastCommit.oid).cumulativePatches) {
+    val cumulativePatches = commitsBySha.getValue(lastCommit.oid).cumulativePatches
+    val fileHistories = GEPRGraphFileHistory.create(reachability, commitsWithPatches,
+                                                    cumulativePatches.mapNotNull { (it as? GEPRLazyTextFilePatch)?.filePath })
+
+    for (patch in cumulativePatches) {
       val change = createChangeFromPatch(mergeBaseRef, lastCommit.oid, patch)
       changes.add(change)
 
-      if (patch is TextFilePatch) {
-        diffDataByChange[change] = GEPRChangeDiffData.Cumulative(lastCommit.oid, patch.filePath, patch,
-                                                                 GEPRGraphFileHistory(commitsBySha, lastCommit, patch.filePath))
+      if (patch is GEPRLazyTextFilePatch) {
+        val fileHistory = fileHistories[patch.filePath]
+        if (fileHistory == null) {
+          LOG.debug("Unable to find file history for cumulative patch for ${patch.filePath}")
+          continue
+        }
+
+        diffDataByChange[change] = GEPRChangeDiffData.Cumulative(lastCommit.oid, patch.filePath, patch, fileHistory)
+        for (path in fileHistory.getPaths()) {
+          cumulativeChangesByTrackedPath.getOrPut(path, ::mutableListOf).add(change)
+        }
+      }
+    }
+
+    val changesByPatch = IdentityHashMap<FilePatch, Change>()
+    commitsWithPatches.forEachIndexed { index, commitWithPatches ->
+      commitWithPatches.commitPatches.forEachIndexed { patchIndex, patch -> changesByPatch[patch] = changesOfCommits[index][patchIndex] }
+    }
+    val cumulativePatchesByCommit = arrayOfNulls<Map<String, GEPRLazyTextFilePatch>>(commitsWithPatches.size)
+    for (fileHistory in fileHistories.values) {
+      for ((ordinal, patch) in fileHistory.getCommitPatches()) {
+        val commitWithPatches = commitsWithPatches[ordinal]
+        val change = changesByPatch[patch] ?: continue
+        val commitCumulativePatches = cumulativePatchesByCommit[ordinal] ?: commitWithPatches.cumulativePatches
+          .filterIsInstance<GEPRLazyTextFilePatch>().associateBy { it.filePath }
+          .also { cumulativePatchesByCommit[ordinal] = it }
+        val cumulativePatch = commitCumulativePatches[patch.filePath]
+        if (cumulativePatch == null) {
+          LOG.debug("Unable to find cumulative patch for commit patch")
+          continue
+        }
+
+        diffDataByChange[change] = GEPRChangeDiffData.Commit(commitWithPatches.sha, patch.filePath, patch, cumulativePatch, fileHistory)
       }
     }
   }
 
+  /**
+   * Creates the changes of all commits concurrently, in the order of the commits and of their patches
+   */
+  private fun createCommitsChanges(commits: List<GECommitWithPatches>, findPreviousCommitSha: (Int) -> String): List<List<Change>> {
+    val changes = arrayOfNulls<List<Change>>(commits.size)
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(commits.indices.toList(), ProgressManager.getInstance().progressIndicator) {
+      val previousCommitSha = findPreviousCommitSha(it)
+      changes[it] = commits[it].commitPatches.map { patch -> createChangeFromPatch(previousCommitSha, commits[it].sha, patch) }
+      true
+    }
+    return changes.map { it!! }
+  }
+
   private fun createChangeFromPatch(beforeRef: String, afterRef: String, patch: FilePatch): Change {
     val project = repository.project
     val (beforePath, afterPath) = getPatchPaths(patch)
@@ -166,8 +242,25 @@ class GEPRChangesProviderImpl(private val repository: GitRepository,
     return beforeName?.let { VcsUtil.getFilePath(repository.root, it) } to afterName?.let { VcsUtil.getFilePath(repository.root, it) }
   }
 
-  private fun findPatchByFilePaths(patches: Collection<FilePatch>, beforePath: String?, afterPath: String?): FilePatch? =
-    patches.find { (afterPath != null && it.afterName == afterPath) || (afterPath == null && it.beforeName == beforePath) }
+  private class CumulativeChangeRange(val ordinals: IntRange, val change: Change)
+
+  /**
+   * Patches of a commit indexed by their paths, the first patch wins when several have the same path
+   */
+  private class PatchesByPath(patches: Collection<FilePatch>) {
+    private val byAfterName = HashMap<String, FilePatch>()
+    private val byBeforeName = HashMap<String, FilePatch>()
+
+    init {
+      for (patch in patches) {
+        patch.afterName?.let { byAfterName.putIfAbsent(it, patch) }
+        patch.beforeName?.let { byBeforeName.putIfAbsent(it, patch) }
+      }
+    }
+
+    fun find(beforePath: String?, afterPath: String?): FilePatch? =
+      if (afterPath != null) byAfterName[afterPath] else beforePath?.let { byBeforeName[it] }
+  }
 
   companion object {
     private val LOG = logger<GEPRChangesProvider>()
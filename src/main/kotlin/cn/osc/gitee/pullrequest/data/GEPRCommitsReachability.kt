@@ -0,0 +1,57 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import java.util.*
+
+/**
+ * Reachability index of the commits of a pull request.
+ *
+ * Commits are numbered in a topological order, so an ancestor always has a smaller ordinal than its descendants,
+ * and every commit keeps the set of ordinals of its ancestors in the pull request, itself included.
+ * Only the parents from the pull request are considered.
+ *
+ * @param commits commits of the pull request, parents before children
+ */
+class GEPRCommitsReachability(commits: List<GECommitWithPatches>) {
+
+  private val ordinals = HashMap<String, Int>(commits.size)
+  private val parents: Array<IntArray>
+  private val ancestors: Array<BitSet>
+
+  init {
+    commits.forEachIndexed { ordinal, commit -> ordinals[commit.sha] = ordinal }
+    parents = Array(commits.size) { ordinal ->
+      commits[ordinal].parents.mapNotNull { ordinals[it] }.toIntArray().also { commitParents ->
+        assert(commitParents.all { it < ordinal }) { "Commits are not in topological order" }
+      }
+    }
+    ancestors = arrayOfNulls<BitSet>(commits.size).also { sets ->
+      for (ordinal in commits.indices) {
+        sets[ordinal] = BitSet(ordinal + 1).apply {
+          set(ordinal)
+          for (parent in parents[ordinal]) or(sets[parent]!!)
+        }
+      }
+    }.requireNoNulls()
+  }
+
+  val size: Int
+    get() = parents.size
+
+  fun getOrdinal(commitSha: String): Int? = ordinals[commitSha]
+
+  /**
+   * Ordinals of the parents from the pull request, in the order of the parents of the commit
+   */
+  fun getParents(ordinal: Int): IntArray = parents[ordinal]
+
+  /**
+   * Ordinal of the first parent from the pull request, the changes of a commit are made against it, -1 if there is none
+   */
+  fun getFirstParent(ordinal: Int): Int = parents[ordinal].firstOrNull() ?: -1
+
+  /**
+   * True if the commit with [ordinal] is the commit with [ancestorOrdinal] or its descendant
+   */
+  fun isAncestor(ancestorOrdinal: Int, ordinal: Int): Boolean = ancestors[ordinal].get(ancestorOrdinal)
+}
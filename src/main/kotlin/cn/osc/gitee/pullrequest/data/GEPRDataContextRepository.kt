@@ -127,8 +127,9 @@ internal class GEPRDataContextRepository(private val project: Project) : Disposa
     val reviewService = GEPRReviewServiceImpl(ProgressManager.getInstance(), securityService, requestExecutor, apiRepositoryCoordinates)
     val filesService = GEPRFilesServiceImpl(ProgressManager.getInstance(), requestExecutor, apiRepositoryCoordinates)
 
-    val listLoader = GEPRListLoader(ProgressManager.getInstance(), requestExecutor, apiRepositoryCoordinates)
-    val listUpdatesChecker = GEPRListETagUpdateChecker(ProgressManager.getInstance(), requestExecutor, account.server, apiRepositoryPath)
+    val listSnapshots = GEPRListSnapshotStore.getInstanceIfEnabled(project)?.scope(account, apiRepositoryCoordinates)
+    val listLoader = GEPRListLoader(ProgressManager.getInstance(), requestExecutor, apiRepositoryCoordinates, listSnapshots)
+    val listUpdatesChecker = GEPRListSynchronizer(ProgressManager.getInstance(), requestExecutor, apiRepositoryCoordinates, listLoader)
 
     val dataProviderRepository = GEPRDataProviderRepositoryImpl(detailsService, stateService, reviewService, filesService, commentService,
                                                                 changesService) { id ->
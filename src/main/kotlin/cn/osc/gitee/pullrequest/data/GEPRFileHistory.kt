@@ -9,5 +9,8 @@ interface GEPRFileHistory : Comparator<String> {
 
   override fun compare(commitSha1: String, commitSha2: String): Int
 
-  fun getPatches(parent: String, child: String, includeFirstKnownPatch: Boolean, includeLastPatch: Boolean): List<TextFilePatch>
+  /**
+   * Null when the lines of the file can't be transferred between the commits
+   */
+  fun getPatches(parent: String, child: String, includeFirstKnownPatch: Boolean, includeLastPatch: Boolean): List<TextFilePatch>?
 }
\ No newline at end of file
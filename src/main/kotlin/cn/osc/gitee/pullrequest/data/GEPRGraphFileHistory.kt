@@ -2,57 +2,165 @@
 package cn.osc.gitee.pullrequest.data
 
 import com.intellij.openapi.diff.impl.patch.TextFilePatch
-import com.intellij.util.asSafely
-import cn.osc.gitee.api.data.GECommit
-import java.util.concurrent.ConcurrentHashMap
 
-class GEPRGraphFileHistory(private val commitsMap: Map<String, GECommitWithPatches>,
-                           private val lastCommit: GECommit,
-                           private val finalFilePath: String) : GEPRFileHistory {
+/**
+ * History of a file in the commits of a pull request with merges.
+ *
+ * The file is tracked from the last commit back through the parents while it differs from the merge base,
+ * following the renames, so the history holds the path of the file after every tracked commit and the patch of the file
+ * in that commit, ordered by the ordinals of [reachability].
+ * The patches of a merge commit are made against its first parent, so the lines are only transferred along the first parents.
+ */
+class GEPRGraphFileHistory private constructor(private val reachability: GEPRCommitsReachability,
+                                               private val ordinals: IntArray,
+                                               private val paths: Array<String>,
+                                               private val patches: Array<GEPRLazyTextFilePatch?>) : GEPRFileHistory {
 
-  private val containsCache = ConcurrentHashMap<Pair<String, String>, Boolean>()
+  /**
+   * Paths the file had in any of the tracked commits
+   */
+  fun getPaths(): Set<String> = paths.toHashSet().apply {
+    patches.mapNotNullTo(this) { patch -> patch?.beforeName?.takeIf { !patch.isNewFile } }
+  }
 
-  override fun contains(commitSha: String, filePath: String): Boolean = containsCache.getOrPut(commitSha to filePath) {
-    val lastCommitWithPatches = commitsMap[lastCommit.oid] ?: return@getOrPut false
-    isSameFile(lastCommitWithPatches, finalFilePath, commitSha, filePath)
+  /**
+   * Patches of the file in the commits which changed it, by the ordinals of the commits
+   */
+  fun getCommitPatches(): List<Pair<Int, GEPRLazyTextFilePatch>> = ordinals.indices.mapNotNull { index ->
+    patches[index]?.let { ordinals[index] to it }
   }
 
-  private fun isSameFile(knownCommit: GECommitWithPatches, knownFilePath: String, commitSha: String, filePath: String): Boolean {
-    if (knownCommit.cumulativePatches.none { it.asSafely<TextFilePatch>()?.filePath == knownFilePath }) return false
+  override fun contains(commitSha: String, filePath: String): Boolean {
+    val index = findIndex(reachability.getOrdinal(commitSha) ?: return false)
+    if (index < 0) return false
+    return paths[index] == filePath || patches[index]?.beforeName == filePath
+  }
 
-    val newKnownFilePath = knownCommit.commitPatches.find { it.asSafely<TextFilePatch>()?.filePath == knownFilePath }?.beforeFileName
-    if (knownCommit.sha == commitSha && (knownFilePath == filePath || newKnownFilePath == filePath)) return true
+  override fun compare(commitSha1: String, commitSha2: String): Int {
+    if (commitSha1 == commitSha2) return 0
 
-    val knownParents = knownCommit.commit.parents.mapNotNull { commitsMap[it.oid] }
-    return knownParents.any { isSameFile(it, newKnownFilePath ?: knownFilePath, commitSha, filePath) }
+    val ordinal1 = reachability.getOrdinal(commitSha1)
+    val ordinal2 = reachability.getOrdinal(commitSha2)
+    if (ordinal1 == null && ordinal2 == null) error("Unknown commit sha")
+    // unknown commit is considered to be the later one
+    if (ordinal1 == null) return 1
+    if (ordinal2 == null) return -1
+    // topological order is consistent with the ancestry
+    return ordinal1.compareTo(ordinal2)
   }
 
-  override fun compare(commitSha1: String, commitSha2: String): Int {
-    TODO("Not supported for now")
-    /*if (commitSha1 == commitSha2) return 0
-    val commit1 = commitsMap[commitSha1] ?: error("Invalid commit sha: $commitSha1")
-    val commit2 = commitsMap[commitSha2] ?: error("Invalid commit sha: $commitSha2")
-
-    // check if commitSha2 is a parent of commitSha1
-    for (commit in Traverser.forGraph(commitsGraph).depthFirstPreOrder(commit1.commit)) {
-      if (commit == commit2.commit) return 1
+  override fun getPatches(parent: String, child: String, includeFirstKnownPatch: Boolean, includeLastPatch: Boolean): List<TextFilePatch>? {
+    val parentOrdinal = reachability.getOrdinal(parent) ?: return emptyList()
+    // up to the last commit when the child is unknown
+    val childOrdinal = reachability.getOrdinal(child)
+    val lastOrdinal = childOrdinal ?: (reachability.size - 1)
+    if (!reachability.isAncestor(parentOrdinal, lastOrdinal)) return null
+
+    val result = mutableListOf<TextFilePatch>()
+    if (!includeFirstKnownPatch) {
+      var ordinal = parentOrdinal
+      var patch = findPatch(ordinal)
+      while (patch == null && ordinal >= 0) {
+        ordinal = reachability.getFirstParent(ordinal)
+        patch = findPatch(ordinal)
+      }
+      result.add((patch ?: return null).materialize())
     }
 
-    // check if commitSha1 is a parent of commitSha2
-    for (commit in Traverser.forGraph(commitsGraph).depthFirstPreOrder(commit2.commit)) {
-      if (commit == commit1.commit) return -1
+    val chain = mutableListOf<Int>()
+    var ordinal = lastOrdinal
+    while (ordinal != parentOrdinal) {
+      chain.add(ordinal)
+      ordinal = reachability.getFirstParent(ordinal)
+      if (ordinal < 0 || !reachability.isAncestor(parentOrdinal, ordinal)) return null
     }
+    for (chainOrdinal in chain.asReversed()) {
+      if (includeLastPatch && chainOrdinal == childOrdinal) continue
+      findPatch(chainOrdinal)?.let { result.add(it.materialize()) }
+    }
+    return result
+  }
 
-    // We break contract here by returning -2 for unconnected commits
-    return -2*/
+  private fun findPatch(ordinal: Int): GEPRLazyTextFilePatch? {
+    if (ordinal < 0) return null
+    val index = findIndex(ordinal)
+    return if (index >= 0) patches[index] else null
   }
 
-  override fun getPatches(parent: String, child: String, includeFirstKnownPatch: Boolean, includeLastPatch: Boolean): List<TextFilePatch> {
-    TODO("Not supported for now")
+  private fun findIndex(ordinal: Int): Int = ordinals.binarySearch(ordinal)
+
+  private class Builder {
+    val ordinals = mutableListOf<Int>()
+    val paths = mutableListOf<String>()
+    val patches = mutableListOf<GEPRLazyTextFilePatch?>()
+
+    fun add(ordinal: Int, path: String, patch: GEPRLazyTextFilePatch?): Boolean {
+      // the file was already reached in this commit with another path
+      if (ordinals.lastOrNull() == ordinal) return false
+      ordinals.add(ordinal)
+      paths.add(path)
+      patches.add(patch)
+      return true
+    }
+
+    // commits were added from the last one
+    fun build(reachability: GEPRCommitsReachability) =
+      GEPRGraphFileHistory(reachability, ordinals.asReversed().toIntArray(),
+                           paths.asReversed().toTypedArray(), patches.asReversed().toTypedArray())
   }
 
   companion object {
-    private val TextFilePatch.filePath
-      get() = (afterName ?: beforeName)!!
+    /**
+     * Tracks the files with [finalFilePaths] in the last commit through all [commits] at once,
+     * every commit is visited once and every file path in it is resolved once, whatever the number of paths leading to it.
+     *
+     * @param commits commits of the pull request in the order of the ordinals of [reachability]
+     * @return histories by the final paths of the files
+     */
+    fun create(reachability: GEPRCommitsReachability,
+               commits: List<GECommitWithPatches>,
+               finalFilePaths: Collection<String>): Map<String, GEPRGraphFileHistory> {
+      if (commits.isEmpty()) return emptyMap()
+
+      val cumulativePaths = commits.map { commit ->
+        commit.cumulativePatches.mapNotNullTo(HashSet()) { (it as? GEPRLazyTextFilePatch)?.filePath }
+      }
+      val builders = LinkedHashMap<String, Builder>()
+      // commit ordinal -> path of the file after the commit -> history of the file, for the commits to visit
+      val tracked = arrayOfNulls<HashMap<String, Builder>>(commits.size)
+
+      val lastOrdinal = commits.size - 1
+      for (path in finalFilePaths) {
+        if (path !in cumulativePaths[lastOrdinal]) continue
+        tracked[lastOrdinal] = (tracked[lastOrdinal] ?: HashMap()).apply {
+          put(path, builders.getOrPut(path, ::Builder))
+        }
+      }
+
+      for (ordinal in lastOrdinal downTo 0) {
+        val files = tracked[ordinal] ?: continue
+        tracked[ordinal] = null
+
+        val commitPatches = commits[ordinal].commitPatches.mapNotNull { it as? GEPRLazyTextFilePatch }.associateBy { it.filePath }
+        for ((path, builder) in files) {
+          val patch = commitPatches[path]
+          if (!builder.add(ordinal, path, patch)) continue
+          if (patch != null && patch.isNewFile) continue
+
+          val beforePath = patch?.beforeName ?: path
+          for ((index, parent) in reachability.getParents(ordinal).withIndex()) {
+            // the patch is made against the first parent, the file could have kept its path in the other ones
+            val parentPath = when {
+              beforePath in cumulativePaths[parent] -> beforePath
+              index > 0 && path in cumulativePaths[parent] -> path
+              else -> continue
+            }
+            val parentFiles = tracked[parent] ?: HashMap<String, Builder>().also { tracked[parent] = it }
+            parentFiles.putIfAbsent(parentPath, builder)
+          }
+        }
+      }
+      return builders.mapValues { it.value.build(reachability) }
+    }
   }
 }
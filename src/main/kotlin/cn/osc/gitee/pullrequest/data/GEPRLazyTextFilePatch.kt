@@ -0,0 +1,221 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.PatchHunk
+import com.intellij.openapi.diff.impl.patch.PatchLine
+import com.intellij.openapi.diff.impl.patch.PatchSyntaxException
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import cn.osc.gitee.util.GEStreamingPatchReader
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.lang.ref.SoftReference
+import java.nio.charset.Charset
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+
+/**
+ * Text patch of a file which keeps only its header and the compressed hunks.
+ *
+ * A patch read from a diff keeps the compressed text of its section of the diff, only the file header is parsed
+ * and the hunk headers are indexed, the hunks themselves are parsed when the patch is materialized.
+ * A patch composed in memory keeps its hunks packed.
+ *
+ * Hunks are materialized into a [TextFilePatch] only when the diff or the lines of the file are requested,
+ * the materialized patch is softly referenced and can be dropped with [release], so a pull request with thousands of files
+ * holds the parsed lines only of the files which are actually opened.
+ */
+class GEPRLazyTextFilePatch private constructor(private val newFile: Boolean,
+                                                private val deletedFile: Boolean,
+                                                private val packed: ByteArray,
+                                                private val packedText: Boolean)
+  : FilePatch() {
+
+  @Volatile
+  private var materializedRef: SoftReference<TextFilePatch>? = null
+
+  val filePath: String
+    get() = (afterName ?: beforeName)!!
+
+  override fun isNewFile() = newFile
+
+  override fun isDeletedFile() = deletedFile
+
+  @Throws(PatchSyntaxException::class)
+  fun materialize(): TextFilePatch {
+    materializedRef?.get()?.let { return it }
+    val patch = if (packedText) parseText() else unpack()
+    materializedRef = SoftReference(patch)
+    return patch
+  }
+
+  fun release() {
+    materializedRef = null
+  }
+
+  private fun parseText(): TextFilePatch {
+    val parsed = GEStreamingPatchReader.parse(decompress(packed)).singleOrNull() as? TextFilePatch
+                 ?: throw PatchSyntaxException(0, "Unexpected patch of $filePath", null)
+    return parsed.also { patch ->
+      patch.beforeName = beforeName
+      patch.afterName = afterName
+      patch.beforeVersionId = beforeVersionId
+      patch.afterVersionId = afterVersionId
+    }
+  }
+
+  private fun unpack(): TextFilePatch {
+    DataInputStream(InflaterInputStream(ByteArrayInputStream(packed)).buffered()).use { input ->
+      val charset = if (input.readBoolean()) Charset.forName(input.readUTF()) else null
+      return TextFilePatch(charset).also { patch ->
+        patch.beforeName = beforeName
+        patch.afterName = afterName
+        patch.beforeVersionId = beforeVersionId
+        patch.afterVersionId = afterVersionId
+        repeat(input.readInt()) {
+          val hunk = PatchHunk(input.readInt(), input.readInt(), input.readInt(), input.readInt())
+          repeat(input.readInt()) {
+            val type = LINE_TYPES[input.readByte().toInt()]
+            val suppressNewLine = input.readBoolean()
+            hunk.addLine(PatchLine(type, readText(input)).apply { isSuppressNewLine = suppressNewLine })
+          }
+          patch.addHunk(hunk)
+        }
+      }
+    }
+  }
+
+  companion object {
+    private val LINE_TYPES = PatchLine.Type.values()
+
+    private const val HUNK_HEADER_PREFIX = "@@ "
+    private val HUNK_HEADER_REGEX = Regex("@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*")
+
+    /**
+     * Patches of a section of a diff describing a single file, see [parseSection]
+     */
+    @Throws(PatchSyntaxException::class)
+    fun parseSection(text: String): List<FilePatch> = parseSection(text, compress(text))
+
+    /**
+     * Parses only the file header of the section and indexes the hunk headers, [compressedText] is kept to parse the hunks later.
+     * Sections without hunks and the ones which are not a single text patch are parsed right away.
+     */
+    @Throws(PatchSyntaxException::class)
+    fun parseSection(text: String, compressedText: ByteArray): List<FilePatch> {
+      val hunksStart = findHunksStart(text)
+      if (hunksStart < 0) return packTextPatches(GEStreamingPatchReader.parse(text))
+
+      val header = parseHeader(text.subSequence(0, hunksStart)) ?: return packTextPatches(GEStreamingPatchReader.parse(text))
+      val hunks = indexHunks(text, hunksStart) ?: return packTextPatches(GEStreamingPatchReader.parse(text))
+      val singleHunk = hunks.singleOrNull()
+      return listOf(GEPRLazyTextFilePatch(header.isNewFile || singleHunk?.isNewContent == true,
+                                          header.isDeletedFile || singleHunk?.isDeletedContent == true,
+                                          compressedText, true).withNamesOf(header))
+    }
+
+    /**
+     * Packs the hunks of the parsed [patch], which is not referenced afterwards
+     */
+    fun create(patch: TextFilePatch): GEPRLazyTextFilePatch =
+      GEPRLazyTextFilePatch(patch.isNewFile, patch.isDeletedFile, pack(patch), false).withNamesOf(patch)
+
+    private fun parseHeader(text: CharSequence): TextFilePatch? =
+      try {
+        GEStreamingPatchReader.parse(text).singleOrNull() as? TextFilePatch
+      }
+      catch (e: PatchSyntaxException) {
+        null
+      }
+
+    private fun packTextPatches(patches: List<FilePatch>) = patches.map { if (it is TextFilePatch) create(it) else it }
+
+    private fun GEPRLazyTextFilePatch.withNamesOf(patch: FilePatch) = apply {
+      beforeName = patch.beforeName
+      afterName = patch.afterName
+      beforeVersionId = patch.beforeVersionId
+      afterVersionId = patch.afterVersionId
+    }
+
+    private fun findHunksStart(text: String): Int {
+      if (text.startsWith(HUNK_HEADER_PREFIX)) return 0
+      val index = text.indexOf("\n$HUNK_HEADER_PREFIX")
+      return if (index < 0) -1 else index + 1
+    }
+
+    /**
+     * Headers of the hunks starting from [start], null if some header can't be read.
+     * Hunk lines start with a space, a plus, a minus or a backslash, so every line starting with "@@ " is a hunk header.
+     */
+    private fun indexHunks(text: String, start: Int): List<HunkHeader>? {
+      val hunks = mutableListOf<HunkHeader>()
+      var offset = start
+      while (offset < text.length) {
+        val lineEnd = text.indexOf('\n', offset).let { if (it < 0) text.length else it }
+        if (text.startsWith(HUNK_HEADER_PREFIX, offset)) {
+          val match = HUNK_HEADER_REGEX.matchEntire(text.subSequence(offset, lineEnd).trimEnd('\r')) ?: return null
+          val (startBefore, lengthBefore, startAfter, lengthAfter) = match.destructured
+          hunks.add(HunkHeader(startBefore.toInt(), lengthBefore.toIntOrNull() ?: 1, startAfter.toInt(), lengthAfter.toIntOrNull() ?: 1))
+        }
+        offset = lineEnd + 1
+      }
+      return hunks
+    }
+
+    private class HunkHeader(val startBefore: Int, val lengthBefore: Int, val startAfter: Int, val lengthAfter: Int) {
+      val isNewContent: Boolean
+        get() = startBefore == 0 && lengthBefore == 0
+
+      val isDeletedContent: Boolean
+        get() = startAfter == 0 && lengthAfter == 0
+    }
+
+    fun compress(text: String): ByteArray {
+      val bytes = ByteArrayOutputStream()
+      DeflaterOutputStream(bytes, Deflater(Deflater.BEST_SPEED)).use { it.write(text.toByteArray(Charsets.UTF_8)) }
+      return bytes.toByteArray()
+    }
+
+    fun decompress(compressedText: ByteArray): String =
+      String(InflaterInputStream(ByteArrayInputStream(compressedText)).use { it.readBytes() }, Charsets.UTF_8)
+
+    private fun pack(patch: TextFilePatch): ByteArray {
+      val bytes = ByteArrayOutputStream()
+      DataOutputStream(DeflaterOutputStream(bytes, Deflater(Deflater.BEST_SPEED)).buffered()).use { output ->
+        val charset = patch.charset
+        output.writeBoolean(charset != null)
+        if (charset != null) output.writeUTF(charset.name())
+        output.writeInt(patch.hunks.size)
+        for (hunk in patch.hunks) {
+          output.writeInt(hunk.startLineBefore)
+          output.writeInt(hunk.endLineBefore)
+          output.writeInt(hunk.startLineAfter)
+          output.writeInt(hunk.endLineAfter)
+          output.writeInt(hunk.lines.size)
+          for (line in hunk.lines) {
+            output.writeByte(line.type.ordinal)
+            output.writeBoolean(line.isSuppressNewLine)
+            writeText(output, line.text)
+          }
+        }
+      }
+      return bytes.toByteArray()
+    }
+
+    // unlike writeUTF, not limited to 64K
+    private fun writeText(output: DataOutputStream, text: String) {
+      val bytes = text.toByteArray(Charsets.UTF_8)
+      output.writeInt(bytes.size)
+      output.write(bytes)
+    }
+
+    private fun readText(input: DataInputStream): String {
+      val bytes = ByteArray(input.readInt())
+      input.readFully(bytes)
+      return String(bytes, Charsets.UTF_8)
+    }
+  }
+}
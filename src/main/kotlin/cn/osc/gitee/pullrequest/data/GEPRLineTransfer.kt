@@ -0,0 +1,199 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.intellij.diff.util.Range
+import com.intellij.diff.util.Side
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import cn.osc.gitee.util.GEPatchHunkUtil
+
+/**
+ * Moves a line of a file through a chain of patches.
+ *
+ * A line on the side the chain starts from is shifted by every patch and lost when a patch changes it,
+ * a line on the other side is only shifted by the patches after the first one.
+ */
+internal abstract class GEPRLineTransfer {
+
+  abstract fun transfer(side: Side, line: Int): Pair<Side, Int>?
+
+  fun transfer(positions: List<Pair<Side, Int>>): List<Pair<Side, Int>?> = positions.map { (side, line) -> transfer(side, line) }
+
+  private object Identity : GEPRLineTransfer() {
+    override fun transfer(side: Side, line: Int) = side to line
+  }
+
+  private object Lost : GEPRLineTransfer() {
+    override fun transfer(side: Side, line: Int): Pair<Side, Int>? = null
+  }
+
+  /**
+   * Both variants of the chain are composed into single offset tables
+   */
+  private class Composed(private val transferFrom: Side,
+                         private val fromFirstPatch: OffsetTable,
+                         private val fromSecondPatch: OffsetTable) : GEPRLineTransfer() {
+
+    override fun transfer(side: Side, line: Int): Pair<Side, Int>? {
+      val table = if (side == transferFrom) fromFirstPatch else fromSecondPatch
+      return table.map(line)?.let { transferFrom to it }
+    }
+  }
+
+  /**
+   * Fallback for the patches whose changes are not ordered, applies them one by one
+   */
+  private class Sequential(private val transferFrom: Side,
+                           private val changeRanges: List<List<Range>>) : GEPRLineTransfer() {
+
+    override fun transfer(side: Side, line: Int): Pair<Side, Int>? {
+      var currentSide = side
+      var currentLine = line
+
+      for (ranges in changeRanges) {
+        if (currentSide == transferFrom) {
+          var offset = 0
+          loop@ for (range in ranges) {
+            when {
+              currentLine < range.start1 ->
+                break@loop
+              currentLine in range.start1 until range.end1 ->
+                return null
+              currentLine >= range.end1 ->
+                offset += (range.end2 - range.start2) - (range.end1 - range.start1)
+            }
+          }
+          currentLine += offset
+        }
+        else {
+          currentSide = transferFrom
+        }
+      }
+      return currentSide to currentLine
+    }
+  }
+
+  /**
+   * Monotone piecewise function over the lines: segment i starts at [starts] (i) and lasts until the next one,
+   * lines of the segment are shifted by [offsets] (i) or lost when the offset is [LOST_OFFSET]
+   */
+  private class OffsetTable(private val starts: IntArray, private val offsets: IntArray) {
+
+    fun map(line: Int): Int? {
+      val offset = offsets[indexOf(line)]
+      return if (offset == LOST_OFFSET) null else line + offset
+    }
+
+    fun indexOf(line: Int): Int {
+      val index = starts.binarySearch(line)
+      return if (index >= 0) index else -index - 2
+    }
+
+    fun start(index: Int) = starts[index]
+
+    fun end(index: Int) = if (index + 1 < starts.size) starts[index + 1] else Int.MAX_VALUE
+
+    fun offset(index: Int) = offsets[index]
+
+    val size: Int
+      get() = starts.size
+
+    /**
+     * Table of [next] applied after this one
+     */
+    fun andThen(next: OffsetTable): OffsetTable {
+      val builder = Builder()
+      for (index in 0 until size) {
+        val start = start(index)
+        val offset = offset(index)
+        if (offset == LOST_OFFSET) {
+          builder.add(start, LOST_OFFSET)
+          continue
+        }
+        // split the image of the segment by the segments of the next table
+        var current = shift(start, offset)
+        val end = shift(end(index), offset)
+        var nextIndex = next.indexOf(current)
+        while (current < end) {
+          val nextOffset = next.offset(nextIndex)
+          builder.add(shift(current, -offset), if (nextOffset == LOST_OFFSET) LOST_OFFSET else offset + nextOffset)
+          current = next.end(nextIndex++)
+        }
+      }
+      return builder.build()
+    }
+
+    companion object {
+      val IDENTITY = OffsetTable(intArrayOf(Int.MIN_VALUE), intArrayOf(0))
+
+      /**
+       * Null if the ranges are not ordered
+       */
+      fun create(ranges: List<Range>): OffsetTable? {
+        val builder = Builder()
+        var offset = 0
+        var previousEnd = Int.MIN_VALUE
+        builder.add(Int.MIN_VALUE, 0)
+        for (range in ranges) {
+          if (range.start1 < previousEnd || range.end1 < range.start1) return null
+          builder.add(range.start1, LOST_OFFSET)
+          offset += (range.end2 - range.start2) - (range.end1 - range.start1)
+          builder.add(range.end1, offset)
+          previousEnd = range.end1
+        }
+        return builder.build()
+      }
+
+      private fun shift(line: Int, offset: Int) = if (line == Int.MIN_VALUE || line == Int.MAX_VALUE) line else line + offset
+    }
+
+    private class Builder {
+      private val starts = mutableListOf<Int>()
+      private val offsets = mutableListOf<Int>()
+
+      fun add(start: Int, offset: Int) {
+        // an empty segment is replaced by the next one
+        if (starts.isNotEmpty() && starts.last() == start) {
+          starts.removeLast()
+          offsets.removeLast()
+        }
+        if (offsets.lastOrNull() == offset) return
+        starts.add(start)
+        offsets.add(offset)
+      }
+
+      fun build() = OffsetTable(starts.toIntArray(), offsets.toIntArray())
+    }
+  }
+
+  companion object {
+    private const val LOST_OFFSET = Int.MIN_VALUE
+
+    val IDENTITY: GEPRLineTransfer = Identity
+
+    /**
+     * Transfer between the commits which are not connected by the patches of the file
+     */
+    val LOST: GEPRLineTransfer = Lost
+
+    /**
+     * Transfer through [patchChain] from left to right, or from right to left in the reversed order if [rightToLeft]
+     */
+    fun create(patchChain: List<TextFilePatch>, rightToLeft: Boolean): GEPRLineTransfer {
+      // points to the same patch
+      if (patchChain.isEmpty()) return IDENTITY
+
+      val patches = if (rightToLeft) patchChain.asReversed() else patchChain
+      val transferFrom = if (rightToLeft) Side.RIGHT else Side.LEFT
+      val changeRanges = patches.map { patch ->
+        patch.hunks.map { hunk ->
+          val ranges = GEPatchHunkUtil.getChangeOnlyRanges(hunk)
+          if (rightToLeft) ranges.map { Range(it.start2, it.end2, it.start1, it.end1) } else ranges
+        }.flatten()
+      }
+
+      val tables = changeRanges.map { OffsetTable.create(it) ?: return Sequential(transferFrom, changeRanges) }
+      val fromSecondPatch = tables.drop(1).fold(OffsetTable.IDENTITY, OffsetTable::andThen)
+      return Composed(transferFrom, tables.first().andThen(fromSecondPatch), fromSecondPatch)
+    }
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import cn.osc.gitee.api.data.pullrequest.GEPullRequestShort
+import cn.osc.gitee.api.data.pullrequest.GEPullRequestState
+import java.util.*
+
+/**
+ * Inverted index of the loaded pull requests.
+ *
+ * Every pull request is indexed by the words of its title, its number, author, assignees, labels and state,
+ * so a search query which narrows the loaded list down can be answered without waiting for the server.
+ */
+internal class GEPRListIndex {
+
+  // key -> ids of the pull requests, keys are prefixed with the kind of the value
+  private val postings = TreeMap<String, MutableSet<String>>()
+  // id -> keys of the pull request
+  private val keys = HashMap<String, List<String>>()
+
+  fun add(pullRequest: GEPullRequestShort) {
+    remove(pullRequest.id)
+    val pullRequestKeys = getKeys(pullRequest)
+    keys[pullRequest.id] = pullRequestKeys
+    for (key in pullRequestKeys) {
+      postings.getOrPut(key, ::HashSet).add(pullRequest.id)
+    }
+  }
+
+  fun remove(id: String) {
+    val pullRequestKeys = keys.remove(id) ?: return
+    for (key in pullRequestKeys) {
+      val ids = postings[key] ?: continue
+      ids.remove(id)
+      if (ids.isEmpty()) postings.remove(key)
+    }
+  }
+
+  fun clear() {
+    postings.clear()
+    keys.clear()
+  }
+
+  /**
+   * Ids of the indexed pull requests matching all of the [conditions]
+   */
+  fun search(conditions: List<Condition>): Set<String> {
+    if (conditions.isEmpty()) return keys.keys.toSet()
+
+    val matches = conditions.map { condition -> condition.getKeys().flatMapTo(HashSet()) { findIds(it) } }.sortedBy { it.size }
+    val result = HashSet(matches.first())
+    for (ids in matches.subList(1, matches.size)) {
+      if (result.isEmpty()) break
+      result.retainAll(ids)
+    }
+    return result
+  }
+
+  private fun findIds(key: Key): Collection<String> =
+    if (key.prefix) postings.subMap(key.value, key.value + Char.MAX_VALUE).values.flatten()
+    else postings[key.value].orEmpty()
+
+  internal class Key(val value: String, val prefix: Boolean = false)
+
+  /**
+   * Condition of a search query which can be checked on the loaded pull requests
+   */
+  sealed class Condition {
+    internal abstract fun getKeys(): List<Key>
+
+    /**
+     * A word of the title starting with [token] or the number of the pull request
+     */
+    class Text(private val token: String) : Condition() {
+      override fun getKeys() = listOf(Key(TITLE + token, true), Key(NUMBER + token.removePrefix("#")))
+    }
+
+    class Author(private val login: String) : Condition() {
+      override fun getKeys() = listOf(Key(AUTHOR + login.lowercase()))
+    }
+
+    class Assignee(private val login: String) : Condition() {
+      override fun getKeys() = listOf(Key(ASSIGNEE + login.lowercase()))
+    }
+
+    class Label(private val name: String) : Condition() {
+      override fun getKeys() = listOf(Key(LABEL + name.lowercase()))
+    }
+
+    class State(private val states: Set<GEPullRequestState>) : Condition() {
+      override fun getKeys() = states.map { Key(STATE + it.name) }
+    }
+  }
+
+  companion object {
+    private const val TITLE = "title:"
+    private const val NUMBER = "number:"
+    private const val AUTHOR = "author:"
+    private const val ASSIGNEE = "assignee:"
+    private const val LABEL = "label:"
+    private const val STATE = "state:"
+
+    private val WORD_SEPARATOR = Regex("[^\\p{L}\\p{N}#]+")
+
+    /**
+     * Lower case words of [text], the same way the titles are split
+     */
+    fun tokenize(text: String): List<String> = text.lowercase().split(WORD_SEPARATOR).filter { it.isNotEmpty() }
+
+    private fun getKeys(pullRequest: GEPullRequestShort): List<String> {
+      val keys = mutableListOf<String>()
+      tokenize(pullRequest.title).mapTo(keys) { TITLE + it }
+      keys.add(NUMBER + pullRequest.number)
+      pullRequest.author?.let { keys.add(AUTHOR + it.login.lowercase()) }
+      pullRequest.assignees.mapTo(keys) { ASSIGNEE + it.login.lowercase() }
+      pullRequest.labels.mapTo(keys) { LABEL + it.name.lowercase() }
+      keys.add(STATE + pullRequest.state.name)
+      return keys
+    }
+  }
+}
@@ -1,25 +1,41 @@
 // Copyright 2000-2022 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
 package cn.osc.gitee.pullrequest.data
 
+import com.intellij.collaboration.async.CompletableFutureUtil
+import com.intellij.collaboration.async.CompletableFutureUtil.handleOnEdt
+import com.intellij.collaboration.async.CompletableFutureUtil.submitIOTask
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.concurrency.EdtExecutorService
+import com.intellij.util.concurrency.annotations.RequiresEdt
 import cn.osc.gitee.api.GEGQLRequests
 import cn.osc.gitee.api.GERepositoryCoordinates
 import cn.osc.gitee.api.GERepositoryPath
 import cn.osc.gitee.api.GiteeApiRequestExecutor
+import cn.osc.gitee.api.GiteeApiRequestPriority
 import cn.osc.gitee.api.data.pullrequest.GEPullRequestShort
+import cn.osc.gitee.api.data.request.search.GiteeIssueSearchSort
 import cn.osc.gitee.api.data.request.search.GiteeIssueSearchType
 import cn.osc.gitee.api.util.GiteeApiSearchQueryBuilder
 import cn.osc.gitee.api.util.SimpleGHGQLPagesLoader
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.*
+import java.util.concurrent.TimeUnit
 import kotlin.properties.Delegates
 
 internal class GEPRListLoader(
   progressManager: ProgressManager,
   requestExecutor: GiteeApiRequestExecutor,
-  repository: GERepositoryCoordinates,
+  private val repository: GERepositoryCoordinates,
+  private val snapshots: GEPRListSnapshotStore.Scope? = null,
 ) : GEListLoaderBase<GEPullRequestShort>(progressManager) {
 
-  var searchQuery by Delegates.observable<GEPRSearchQuery?>(null) { _, _, _ ->
+  var searchQuery by Delegates.observable<GEPRSearchQuery?>(null) { _, oldValue, newValue ->
+    localSearchResult = if (error == null && Registry.`is`("gitee.pr.list.local.search", true)) searchLocally(oldValue, newValue) else null
     reset()
   }
 
@@ -27,21 +43,187 @@ internal class GEPRListLoader(
     GEGQLRequests.PullRequest.search(repository.serverPath, buildQuery(repository.repositoryPath, searchQuery), p)
   })
 
-  override fun canLoadMore() = !loading && (loader.hasNext || error != null)
+  // the local search results or the snapshot are shown only instead of the first page
+  private var firstLoad = true
+  private var localSearchResult: List<GEPullRequestShort>? = null
+  private var snapshotSaveScheduled = false
+
+  private val index = GEPRListIndex()
+
+  init {
+    dataEventDispatcher.addListener(object : GEListLoader.ListDataListener {
+      override fun onDataAdded(startIdx: Int) = dataChanged(startIdx, loadedData.size)
+      override fun onDataInserted(startIdx: Int, endIdx: Int) = dataChanged(startIdx, endIdx)
+      override fun onDataUpdated(startIdx: Int, endIdx: Int) = dataChanged(startIdx, endIdx)
+      override fun onDataUpdated(idx: Int) = dataChanged(idx, idx + 1)
+
+      override fun onDataRemoved(data: Any) {
+        (data as? GEPullRequestShort)?.let { index.remove(it.id) }
+        scheduleSnapshotSave()
+      }
+
+      override fun onAllDataRemoved() = index.clear()
+    })
+  }
+
+  private fun dataChanged(startIdx: Int, endIdx: Int) {
+    for (idx in startIdx until endIdx) {
+      index.add(loadedData[idx])
+    }
+    scheduleSnapshotSave()
+  }
+
+  /**
+   * Loaded pull requests which match [query], if it narrows the [loadedQuery] down and can be checked locally
+   */
+  private fun searchLocally(loadedQuery: GEPRSearchQuery?, query: GEPRSearchQuery?): List<GEPullRequestShort>? {
+    if (loadedData.isEmpty()) return null
+    val conditions = query?.getNarrowingConditions(loadedQuery) ?: return null
+    val ids = index.search(conditions)
+    // nothing to show until the server answers
+    if (ids.isEmpty()) return null
+    return loadedData.filter { it.id in ids }
+  }
+
+  override fun canLoadMore() = !loading && (hasPrefetchedPages || loader.hasNext || error != null)
+
+  override fun loadMore(update: Boolean) {
+    if (update || !firstLoad || loading || Disposer.isDisposed(this)) {
+      super.loadMore(update)
+      return
+    }
+    firstLoad = false
+
+    val localSearchResult = localSearchResult
+    this.localSearchResult = null
+    if (localSearchResult != null) {
+      loading = true
+      replaceData(localSearchResult)
+      revalidate(progressIndicator, localSearchResult.size)
+      return
+    }
+
+    val snapshots = snapshots
+    if (snapshots == null) {
+      super.loadMore(false)
+      return
+    }
+
+    val indicator = progressIndicator
+    val query = buildQuery(repository.repositoryPath, searchQuery)
+    loading = true
+    progressManager.submitIOTask(indicator) {
+      snapshots.load(query)
+    }.handleOnEdt { snapshot, _ ->
+      if (indicator.isCanceled) return@handleOnEdt
+      if (snapshot.isNullOrEmpty()) {
+        loading = false
+        super.loadMore(false)
+      }
+      else {
+        replaceData(snapshot)
+        revalidate(indicator, snapshot.size)
+      }
+    }
+  }
+
+  /**
+   * Loads as many pages as needed to cover the [shownSize] items shown from the snapshot or from the local search results
+   * and applies the differences in place
+   */
+  private fun revalidate(indicator: ProgressIndicator, shownSize: Int) {
+    progressManager.submitIOTask(indicator) {
+      val pullRequests = mutableListOf<GEPullRequestShort>()
+      while (pullRequests.size < shownSize && loader.hasNext) {
+        loader.loadNext(it)?.let(pullRequests::addAll)
+      }
+      pullRequests
+    }.handleOnEdt { pullRequests, error ->
+      if (indicator.isCanceled) return@handleOnEdt
+      loading = false
+      if (error != null) {
+        if (!CompletableFutureUtil.isCancellation(error)) this.error = error
+      }
+      else if (pullRequests != null) {
+        replaceData(pullRequests)
+        schedulePrefetch()
+      }
+    }
+  }
+
+  /**
+   * Applies the pull requests updated since the last synchronization to the loaded list:
+   * [matching] ones still match the search query, the ones with [removedIds] no longer do.
+   *
+   * @return false if some of the new pull requests can't be placed in the list without reloading it
+   */
+  @RequiresEdt
+  fun synchronize(matching: List<GEPullRequestShort>, removedIds: Set<String>): Boolean =
+    patchData(matching, removedIds, getOrder(searchQuery, matching), !loader.hasNext && !hasPrefetchedPages)
+
+  private fun scheduleSnapshotSave() {
+    val snapshots = snapshots ?: return
+    // the snapshot or the local search results are shown while the list is revalidated
+    if (loading || error != null) return
+    // changes made in a quick succession are saved at once
+    if (snapshotSaveScheduled) return
+    snapshotSaveScheduled = true
+    EdtExecutorService.getScheduledExecutorInstance().schedule({ saveSnapshot(snapshots) }, SNAPSHOT_SAVE_DELAY, TimeUnit.MILLISECONDS)
+  }
+
+  @RequiresEdt
+  private fun saveSnapshot(snapshots: GEPRListSnapshotStore.Scope) {
+    snapshotSaveScheduled = false
+    if (loading || error != null || Disposer.isDisposed(this)) return
+    val query = buildQuery(repository.repositoryPath, searchQuery)
+    val pullRequests = loadedData.toList()
+    ApplicationManager.getApplication().executeOnPooledThread { snapshots.save(query, pullRequests) }
+  }
+
+  override fun getId(item: GEPullRequestShort): Any = item.id
 
   override fun doLoadMore(indicator: ProgressIndicator, update: Boolean) = loader.loadNext(indicator, update)
 
+  override fun canPrefetch() = loader.hasNext
+
+  override fun doPrefetch(indicator: ProgressIndicator) = loader.loadNext(indicator, priority = GiteeApiRequestPriority.BACKGROUND)
+
   override fun reset() {
     loader.reset()
+    firstLoad = true
     super.reset()
   }
 
   companion object {
-    private fun buildQuery(repoPath: GERepositoryPath, searchQuery: GEPRSearchQuery?): String {
+    private val SNAPSHOT_SAVE_DELAY = TimeUnit.SECONDS.toMillis(2)
+    private val UPDATED_DATE_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneOffset.UTC)
+
+    /**
+     * Order of the list for [searchQuery], null if it is decided by the server.
+     * The pull requests in [updated] are the most recently updated ones, in that order.
+     */
+    private fun getOrder(searchQuery: GEPRSearchQuery?, updated: List<GEPullRequestShort>): Comparator<GEPullRequestShort>? =
+      when (if (searchQuery == null) GiteeIssueSearchSort.created else searchQuery.sort) {
+        GiteeIssueSearchSort.created -> compareByDescending<GEPullRequestShort> { it.createdAt }
+        GiteeIssueSearchSort.updated -> {
+          val ranks = updated.withIndex().associate { it.value.id to it.index }
+          compareBy<GEPullRequestShort> { ranks[it.id] ?: Int.MAX_VALUE }
+        }
+        null -> null
+      }
+
+    /**
+     * With [updatedSince] only the pull requests updated since then are searched for, the recently updated first
+     */
+    fun buildQuery(repoPath: GERepositoryPath, searchQuery: GEPRSearchQuery?, updatedSince: Date? = null): String {
       return GiteeApiSearchQueryBuilder.searchQuery {
         qualifier("type", GiteeIssueSearchType.pr.name)
         qualifier("repo", repoPath.toString())
         searchQuery?.buildApiSearchQuery(this)
+        if (updatedSince != null) {
+          qualifier("updated", ">=" + UPDATED_DATE_FORMAT.format(updatedSince.toInstant()))
+          qualifier("sort", GiteeIssueSearchSort.updated.name)
+        }
       }
     }
   }
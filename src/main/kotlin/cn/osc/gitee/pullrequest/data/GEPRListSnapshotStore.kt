@@ -0,0 +1,309 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.intellij.collaboration.async.collectWithPrevious
+import com.intellij.collaboration.async.disposingScope
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.registry.Registry
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import cn.osc.gitee.api.GERepositoryCoordinates
+import cn.osc.gitee.api.data.*
+import cn.osc.gitee.api.data.pullrequest.*
+import cn.osc.gitee.api.data.request.GiteeRequestPagination
+import cn.osc.gitee.authentication.accounts.GEAccountManager
+import cn.osc.gitee.authentication.accounts.GiteeAccount
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+import kotlin.io.path.*
+
+/**
+ * Bounded on-disk store of the first pages of the pull request lists of a project.
+ *
+ * A snapshot holds the loaded pull requests of a repository for a search query as seen by an account,
+ * so the list can be shown right away when the tool window is opened and revalidated in the background.
+ * Only the [maxSnapshots] most recently used snapshots of at most [maxItems] pull requests are kept,
+ * and snapshots written with another [VERSION] or older than [MAX_AGE] are dropped.
+ * Snapshots of an account are removed together with the account.
+ *
+ * Enabled with the "gitee.pr.list.snapshot" registry key.
+ */
+@Service(Service.Level.PROJECT)
+class GEPRListSnapshotStore internal constructor(private val snapshotsDir: Path,
+                                                 private val maxSnapshots: Int,
+                                                 private val maxItems: Int) : Disposable {
+
+  constructor(project: Project)
+    : this(Path(PathManager.getSystemPath(), "gitee", "pr-list-snapshots", project.locationHash), MAX_SNAPSHOTS, MAX_ITEMS)
+
+  init {
+    disposingScope().launch {
+      service<GEAccountManager>().accountsState.collectWithPrevious(setOf()) { prev, current ->
+        val removed = prev - current
+        if (removed.isNotEmpty()) launch(Dispatchers.IO) { clear(removed) }
+      }
+    }
+  }
+
+  fun scope(account: GiteeAccount, repository: GERepositoryCoordinates): Scope = Scope("${account.id}\n$repository")
+
+  /**
+   * Snapshots of the lists of a single repository as seen by a single account, by the search queries
+   */
+  inner class Scope internal constructor(private val prefix: String) {
+
+    fun load(query: String): List<GEPullRequestShort>? = read("$prefix\n$query")
+
+    fun save(query: String, pullRequests: List<GEPullRequestShort>) = write("$prefix\n$query", pullRequests.take(maxItems))
+  }
+
+  private fun read(key: String): List<GEPullRequestShort>? {
+    val file = snapshotsDir.resolve(entryName(key))
+    if (!file.isRegularFile()) return null
+    return try {
+      val snapshot = DataInputStream(InflaterInputStream(file.inputStream()).buffered()).use { readSnapshot(it, key) }
+      if (snapshot == null) {
+        file.deleteIfExists()
+        return null
+      }
+      file.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+      snapshot
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to read pull request list snapshot $file", e)
+      file.deleteIfExists()
+      null
+    }
+  }
+
+  private fun write(key: String, pullRequests: List<GEPullRequestShort>) {
+    val name = entryName(key)
+    var tempFile: Path? = null
+    try {
+      snapshotsDir.createDirectories()
+      tempFile = Files.createTempFile(snapshotsDir, name, ".tmp")
+      DataOutputStream(DeflaterOutputStream(tempFile.outputStream()).buffered()).use { writeSnapshot(it, key, pullRequests) }
+      Files.move(tempFile, snapshotsDir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      evictIfNeeded()
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to store pull request list snapshot $name", e)
+      tempFile?.deleteIfExists()
+    }
+  }
+
+  @Synchronized
+  private fun evictIfNeeded() {
+    val snapshots = snapshotsDir.listDirectoryEntries().filter { it.isRegularFile() && !it.name.endsWith(".tmp") }
+    if (snapshots.size <= maxSnapshots) return
+    snapshots.sortedByDescending { it.getLastModifiedTime() }.drop(maxSnapshots).forEach { it.deleteIfExists() }
+  }
+
+  /**
+   * Removes the snapshots of the [accounts] along with the unreadable ones
+   */
+  private fun clear(accounts: Set<GiteeAccount>) {
+    if (!snapshotsDir.isDirectory()) return
+    val prefixes = accounts.map { "${it.id}\n" }
+    try {
+      for (file in snapshotsDir.listDirectoryEntries()) {
+        if (!file.isRegularFile() || file.name.endsWith(".tmp")) continue
+        val key = try {
+          DataInputStream(InflaterInputStream(file.inputStream()).buffered()).use { readKey(it) }
+        }
+        catch (e: IOException) {
+          null
+        }
+        if (key == null || prefixes.any { key.startsWith(it) }) file.deleteIfExists()
+      }
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to remove pull request list snapshots", e)
+    }
+  }
+
+  override fun dispose() = Unit
+
+  companion object {
+    private val LOG = logger<GEPRListSnapshotStore>()
+
+    private const val VERSION = 1
+    private const val MAX_SNAPSHOTS = 32
+    private const val MAX_ITEMS = 3 * GiteeRequestPagination.DEFAULT_PAGE_SIZE
+    private val MAX_AGE = TimeUnit.DAYS.toMillis(14)
+
+    private const val USER: Byte = 0
+    private const val BOT: Byte = 1
+    private const val MANNEQUIN: Byte = 2
+    private const val ORGANIZATION: Byte = 3
+    private const val TEAM: Byte = 4
+
+    @JvmStatic
+    fun getInstance(project: Project): GEPRListSnapshotStore = project.service()
+
+    internal fun getInstanceIfEnabled(project: Project): GEPRListSnapshotStore? =
+      if (Registry.`is`("gitee.pr.list.snapshot", true)) getInstance(project) else null
+
+    private fun entryName(key: String): String {
+      val digest = MessageDigest.getInstance("SHA-1").digest(key.toByteArray())
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    private fun writeSnapshot(output: DataOutputStream, key: String, pullRequests: List<GEPullRequestShort>) {
+      output.writeInt(VERSION)
+      output.writeUTF(key)
+      output.writeLong(System.currentTimeMillis())
+      output.writeInt(pullRequests.size)
+      for (pullRequest in pullRequests) {
+        writePullRequest(output, pullRequest)
+      }
+    }
+
+    private fun readKey(input: DataInputStream): String? = if (input.readInt() == VERSION) input.readUTF() else null
+
+    /**
+     * Pull requests of the snapshot, null if the snapshot is outdated
+     */
+    private fun readSnapshot(input: DataInputStream, key: String): List<GEPullRequestShort>? {
+      // another key with the same hash
+      if (readKey(input) != key) return null
+      if (System.currentTimeMillis() - input.readLong() > MAX_AGE) return null
+      return List(input.readInt()) { readPullRequest(input) }
+    }
+
+    private fun writePullRequest(output: DataOutputStream, pullRequest: GEPullRequestShort) {
+      with(output) {
+        writeUTF(pullRequest.id)
+        writeUTF(pullRequest.url)
+        writeLong(pullRequest.number)
+        writeUTF(pullRequest.title)
+        writeUTF(pullRequest.state.name)
+        writeBoolean(pullRequest.isDraft)
+        writeNullable(pullRequest.author) { writeActor(this, it) }
+        writeLong(pullRequest.createdAt.time)
+        writeInt(pullRequest.assignees.size)
+        pullRequest.assignees.forEach { writeActor(this, it) }
+        writeInt(pullRequest.labels.size)
+        pullRequest.labels.forEach {
+          writeUTF(it.id)
+          writeUTF(it.url)
+          writeUTF(it.name)
+          writeUTF(it.color)
+        }
+        writeInt(pullRequest.reviewRequests.size)
+        pullRequest.reviewRequests.forEach { request -> writeNullable(request.requestedReviewer) { writeReviewer(this, it) } }
+        writeInt(pullRequest.unresolvedReviewThreadsCount)
+        writeUTF(pullRequest.mergeable.name)
+        writeBoolean(pullRequest.viewerCanUpdate)
+        writeBoolean(pullRequest.viewerDidAuthor)
+      }
+    }
+
+    private fun readPullRequest(input: DataInputStream): GEPullRequestShort =
+      with(input) {
+        val id = readUTF()
+        val url = readUTF()
+        val number = readLong()
+        val title = readUTF()
+        val state = readEnum<GEPullRequestState>(this)
+        val isDraft = readBoolean()
+        val author = readNullable { readActor(this) }
+        val createdAt = Date(readLong())
+        val assignees = List(readInt()) { readActor(this) as? GEUser ?: throw IOException("Assignee is not a user") }
+        val labels = List(readInt()) { GELabel(readUTF(), readUTF(), readUTF(), readUTF()) }
+        val reviewRequests = List(readInt()) { GEPullRequestReviewRequest(readNullable { readReviewer(this) }) }
+        // only the number of the unresolved threads is shown in the list
+        val reviewThreads = List(readInt()) { GEPullRequestShort.ReviewThreadDetails(isResolved = false, isOutdated = false) }
+        GEPullRequestShort(id, url, number, title, state, isDraft, author, createdAt,
+                           GENodes(assignees), GENodes(labels), GENodes(reviewRequests), GENodes(reviewThreads),
+                           readEnum<GEPullRequestMergeableState>(this), readBoolean(), readBoolean())
+      }
+
+    private fun writeActor(output: DataOutputStream, actor: GEActor) {
+      when (actor) {
+        is GEUser -> writeActorFields(output, USER, actor.id, actor, actor.name)
+        is GEBot -> writeActorFields(output, BOT, actor.id, actor, actor.name)
+        is GEMannequin -> writeActorFields(output, MANNEQUIN, actor.id, actor, actor.name)
+        is GEOrganization -> writeActorFields(output, ORGANIZATION, actor.id, actor, actor.name)
+        else -> throw IOException("Unsupported actor ${actor.javaClass.name}")
+      }
+    }
+
+    private fun writeActorFields(output: DataOutputStream, type: Byte, id: String, actor: GEActor, name: String?) {
+      output.writeByte(type.toInt())
+      output.writeUTF(id)
+      output.writeUTF(actor.login)
+      output.writeUTF(actor.url)
+      output.writeUTF(actor.avatarUrl)
+      output.writeNullable(name) { writeUTF(it) }
+    }
+
+    private fun readActor(input: DataInputStream): GEActor = readActorFields(input, input.readByte())
+
+    private fun readActorFields(input: DataInputStream, type: Byte): GEActor {
+      val id = input.readUTF()
+      val login = input.readUTF()
+      val url = input.readUTF()
+      val avatarUrl = input.readUTF()
+      val name = input.readNullable { readUTF() }
+      return when (type) {
+        USER -> GEUser(id, login, url, avatarUrl, name)
+        BOT -> GEBot(id, login, url, avatarUrl, name)
+        MANNEQUIN -> GEMannequin(id, login, url, avatarUrl, name)
+        ORGANIZATION -> GEOrganization(id, login, url, avatarUrl, name)
+        else -> throw IOException("Unknown actor type $type")
+      }
+    }
+
+    private fun writeReviewer(output: DataOutputStream, reviewer: GEPullRequestRequestedReviewer) {
+      when (reviewer) {
+        is GEUser -> writeActor(output, reviewer)
+        is GETeam -> with(output) {
+          writeByte(TEAM.toInt())
+          writeUTF(reviewer.id)
+          writeUTF(reviewer.slug)
+          writeUTF(reviewer.url)
+          writeUTF(reviewer.avatarUrl)
+          writeNullable(reviewer.name) { writeUTF(it) }
+          writeUTF(reviewer.combinedSlug)
+        }
+        else -> throw IOException("Unsupported reviewer ${reviewer.javaClass.name}")
+      }
+    }
+
+    private fun readReviewer(input: DataInputStream): GEPullRequestRequestedReviewer {
+      val type = input.readByte()
+      if (type != TEAM) return readActorFields(input, type) as? GEUser ?: throw IOException("Reviewer is not a user")
+      return with(input) {
+        GETeam(readUTF(), readUTF(), readUTF(), readUTF(), readNullable { readUTF() }, readUTF())
+      }
+    }
+
+    private inline fun <reified E : Enum<E>> readEnum(input: DataInputStream): E {
+      val name = input.readUTF()
+      return enumValues<E>().find { it.name == name } ?: throw IOException("Unknown ${E::class.java.simpleName} $name")
+    }
+
+    private fun <T : Any> DataOutputStream.writeNullable(value: T?, writer: DataOutputStream.(T) -> Unit) {
+      writeBoolean(value != null)
+      if (value != null) writer(value)
+    }
+
+    private fun <T : Any> DataInputStream.readNullable(reader: DataInputStream.() -> T): T? = if (readBoolean()) reader() else null
+  }
+}
@@ -0,0 +1,180 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.intellij.collaboration.async.CompletableFutureUtil.handleOnEdt
+import com.intellij.collaboration.async.CompletableFutureUtil.submitIOTask
+import com.intellij.collaboration.ui.SimpleEventListener
+import com.intellij.concurrency.JobScheduler
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.application.runInEdt
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.util.EventDispatcher
+import cn.osc.gitee.api.GEGQLRequests
+import cn.osc.gitee.api.GERepositoryCoordinates
+import cn.osc.gitee.api.GiteeApiRequestExecutor
+import cn.osc.gitee.api.GiteeApiRequests
+import cn.osc.gitee.api.data.graphql.GEGQLRequestPagination
+import cn.osc.gitee.api.data.pullrequest.GEPullRequestShort
+import cn.osc.gitee.util.GiteeUtil.Delegates.observableField
+import cn.osc.gitee.util.NonReusableEmptyProgressIndicator
+import java.util.*
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps the loaded pull request list up to date without reloading it.
+ *
+ * The ETag of the list is polled with conditional requests while the list is shown, the polling backs off while nothing changes
+ * and pauses while the list is hidden. When the list has changed, only the pull requests updated since the last synchronization
+ * are searched for and patched into the loaded list in place.
+ * The updated pull requests are also searched for without the search query, so the ones which no longer match it are removed.
+ * When there are more of them than fit into a single page or they can't be placed in the list, the list is marked as [outdated] instead.
+ */
+internal class GEPRListSynchronizer(private val progressManager: ProgressManager,
+                                    private val requestExecutor: GiteeApiRequestExecutor,
+                                    private val repository: GERepositoryCoordinates,
+                                    private val listLoader: GEPRListLoader) : GEPRListUpdatesChecker {
+
+  private val outdatedEventDispatcher = EventDispatcher.create(SimpleEventListener::class.java)
+  override var outdated by observableField(false, outdatedEventDispatcher)
+    private set
+
+  private var started = false
+  private var active = false
+
+  private var progressIndicator = NonReusableEmptyProgressIndicator()
+  private var scheduledPoll: ScheduledFuture<*>? = null
+  private var polling = false
+  private var interval = MIN_INTERVAL
+  private var lastPollTime = 0L
+
+  private var lastETag: String? = null
+  // pull requests updated before this time are already synchronized
+  private var watermark: Date? = null
+
+  override fun start() {
+    if (started) return
+    started = true
+    watermark = Date(System.currentTimeMillis() - CLOCK_SKEW)
+    lastPollTime = System.currentTimeMillis()
+    schedulePoll()
+  }
+
+  override fun stop() {
+    started = false
+    cancelPolling()
+    interval = MIN_INTERVAL
+    lastETag = null
+    watermark = null
+    outdated = false
+  }
+
+  override fun setActive(active: Boolean) {
+    if (this.active == active) return
+    this.active = active
+    if (active) schedulePoll() else cancelPolling()
+  }
+
+  private fun cancelPolling() {
+    scheduledPoll?.cancel(false)
+    scheduledPoll = null
+    polling = false
+    progressIndicator.cancel()
+    progressIndicator = NonReusableEmptyProgressIndicator()
+  }
+
+  private fun schedulePoll() {
+    if (!started || !active || polling) return
+    scheduledPoll?.cancel(false)
+    // when the list is shown again after a long pause it is polled right away
+    val delay = (lastPollTime + interval - System.currentTimeMillis()).coerceAtLeast(0)
+    scheduledPoll = JobScheduler.getScheduler().schedule({ runInEdt(ModalityState.any()) { poll() } }, delay, TimeUnit.MILLISECONDS)
+  }
+
+  private fun poll() {
+    scheduledPoll = null
+    if (!started || !active || polling) return
+    // the list is being loaded, updates will be checked after that
+    if (listLoader.loading) {
+      lastPollTime = System.currentTimeMillis()
+      schedulePoll()
+      return
+    }
+
+    val indicator = progressIndicator
+    val knownETag = lastETag
+    val updatedSince = watermark ?: return
+    val searchQuery = listLoader.searchQuery
+    val query = GEPRListLoader.buildQuery(repository.repositoryPath, searchQuery, updatedSince)
+    // pull requests which stopped matching the search query are only found without it
+    val unfilteredQuery = if (searchQuery == null || searchQuery.isEmpty()) null
+    else GEPRListLoader.buildQuery(repository.repositoryPath, null, updatedSince)
+    val pollTime = System.currentTimeMillis()
+    polling = true
+    lastPollTime = pollTime
+
+    progressManager.submitIOTask(indicator) {
+      val eTag = requestExecutor.execute(it, GiteeApiRequests.Repos.PullRequests.getListETag(repository.serverPath,
+                                                                                              repository.repositoryPath, knownETag))
+      // without a known ETag there is nothing to compare with, changes since the watermark are picked up with the next change
+      if (knownETag == null || eTag == knownETag) PollResult(eTag, null)
+      else {
+        val matching = search(it, query)
+        val updated = unfilteredQuery?.let { unfiltered -> search(it, unfiltered) } ?: matching
+        val matchingIds = matching.nodes.mapTo(HashSet()) { pr -> pr.id }
+        val removedIds = updated.nodes.mapNotNullTo(HashSet()) { pr -> pr.id.takeIf { id -> id !in matchingIds } }
+        PollResult(eTag, SearchResult(matching.nodes, removedIds, matching.pageInfo.hasNextPage || updated.pageInfo.hasNextPage))
+      }
+    }.handleOnEdt { result, error ->
+      if (indicator.isCanceled) return@handleOnEdt
+      polling = false
+      val updates = result?.updates
+      when {
+        error != null -> {
+          LOG.debug("Unable to synchronize pull request list", error)
+          interval = (interval * 2).coerceAtMost(MAX_INTERVAL)
+        }
+        updates == null -> {
+          lastETag = result?.eTag ?: lastETag
+          interval = (interval * 2).coerceAtMost(MAX_INTERVAL)
+        }
+        else -> {
+          lastETag = result.eTag
+          if (updates.incomplete || !listLoader.synchronize(updates.pullRequests, updates.removedIds)) outdated = true
+          else watermark = Date(pollTime - CLOCK_SKEW)
+          interval = MIN_INTERVAL
+        }
+      }
+      schedulePoll()
+    }
+  }
+
+  private fun search(indicator: ProgressIndicator, query: String) =
+    requestExecutor.execute(indicator, GEGQLRequests.PullRequest.search(repository.serverPath, query,
+                                                                        GEGQLRequestPagination(null as String?, MAX_PATCH_SIZE)))
+
+  override fun dispose() {
+    started = false
+    cancelPolling()
+  }
+
+  override fun addOutdatedStateChangeListener(disposable: Disposable, listener: () -> Unit) =
+    SimpleEventListener.addDisposableListener(outdatedEventDispatcher, disposable, listener)
+
+  private class PollResult(val eTag: String?, val updates: SearchResult?)
+
+  private class SearchResult(val pullRequests: List<GEPullRequestShort>, val removedIds: Set<String>, val incomplete: Boolean)
+
+  companion object {
+    private val LOG = logger<GEPRListSynchronizer>()
+
+    private val MIN_INTERVAL = TimeUnit.SECONDS.toMillis(15)
+    private val MAX_INTERVAL = TimeUnit.MINUTES.toMillis(5)
+    // the clocks of the server and the client may differ, a pull request updated twice is just patched twice
+    private val CLOCK_SKEW = TimeUnit.MINUTES.toMillis(1)
+    private const val MAX_PATCH_SIZE = 50
+  }
+}
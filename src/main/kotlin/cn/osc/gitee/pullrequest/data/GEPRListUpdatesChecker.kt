@@ -15,6 +15,12 @@ interface GEPRListUpdatesChecker : Disposable {
   @RequiresEdt
   fun stop()
 
+  /**
+   * Updates are checked while the list is shown and paused while it is hidden
+   */
+  @RequiresEdt
+  fun setActive(active: Boolean)
+
   @RequiresEdt
   fun addOutdatedStateChangeListener(disposable: Disposable, listener: () -> Unit)
 }
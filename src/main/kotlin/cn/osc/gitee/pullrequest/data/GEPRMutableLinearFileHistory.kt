@@ -3,93 +3,106 @@ package cn.osc.gitee.pullrequest.data
 
 import com.intellij.openapi.diff.impl.patch.TextFilePatch
 
-class GEPRMutableLinearFileHistory(commitHashes: List<String>) : GEPRFileHistory {
-
-  private val history: MutableMap<String, Entry>
+/**
+ * History of a file in a linear sequence of commits.
+ *
+ * Only the commits which changed the file are stored, ordered by their position in [commitOrdinals],
+ * which is shared by the histories of all files, so every query is a binary search over the patches of the file.
+ */
+class GEPRMutableLinearFileHistory(private val commitOrdinals: Map<String, Int>) : GEPRFileHistory {
+
+  private var ordinals = IntArray(INITIAL_CAPACITY)
+  private var patches = arrayOfNulls<GEPRLazyTextFilePatch>(INITIAL_CAPACITY)
+  // path of the file from the commit of the patch until the commit of the next patch
+  private var paths = arrayOfNulls<String>(INITIAL_CAPACITY)
+  private var size = 0
 
   val firstKnownFilePath: String?
-    get() = (history.values.find { it.patch != null }?.patch ?: error("Empty history")).beforeName
+    get() {
+      if (size == 0) error("Empty history")
+      return patches[0]!!.beforeName
+    }
 
   val lastKnownFilePath: String?
     get() {
-      val lastFilePath = (history.values.findLast { it.patch != null }?.patch ?: error("Empty history")).afterName
-      return lastFilePath ?: firstKnownFilePath
+      if (size == 0) error("Empty history")
+      return patches[size - 1]!!.afterName ?: firstKnownFilePath
     }
 
-  init {
-    history = LinkedHashMap()
-    for (sha in commitHashes) {
-      history[sha] = Entry(null)
+  fun append(commitSha: String, patch: GEPRLazyTextFilePatch) {
+    val ordinal = commitOrdinals[commitSha]
+    assert(ordinal != null && (size == 0 || ordinals[size - 1] < ordinal))
+    if (size == ordinals.size) {
+      val capacity = size * 2
+      ordinals = ordinals.copyOf(capacity)
+      patches = patches.copyOf(capacity)
+      paths = paths.copyOf(capacity)
     }
+    ordinals[size] = ordinal!!
+    patches[size] = patch
+    paths[size] = patch.filePath
+    size++
   }
 
-  fun append(commitSha: String, patch: TextFilePatch) {
-    val entry = history[commitSha]
-    assert(entry != null && entry.patch == null)
-    history[commitSha] = Entry(patch)
+  /**
+   * Ranges of commit ordinals in which the file had each of its paths
+   */
+  fun getPathRanges(): List<Pair<IntRange, String>> = List(size) { index ->
+    val end = if (index + 1 < size) ordinals[index + 1] else commitOrdinals.size
+    ordinals[index] until end to paths[index]!!
   }
 
   override fun contains(commitSha: String, filePath: String): Boolean {
-    var lastPath: String? = null
-    for ((sha, entry) in history) {
-      val entryPath = entry.filePath
-      if (entryPath != null) lastPath = entryPath
-
-      if (sha == commitSha && lastPath == filePath) return true
-    }
-    return false
+    val ordinal = commitOrdinals[commitSha] ?: return false
+    val index = findLastAtOrBefore(ordinal)
+    return index >= 0 && paths[index] == filePath
   }
 
   override fun compare(commitSha1: String, commitSha2: String): Int {
     if (commitSha1 == commitSha2) return 0
 
-    for ((sha, _) in history) {
-      if (sha == commitSha1) return -1
-      if (sha == commitSha2) return 1
-    }
-    error("Unknown commit sha")
+    val ordinal1 = commitOrdinals[commitSha1]
+    val ordinal2 = commitOrdinals[commitSha2]
+    if (ordinal1 == null && ordinal2 == null) error("Unknown commit sha")
+    // unknown commit is considered to be the later one
+    if (ordinal1 == null) return 1
+    if (ordinal2 == null) return -1
+    return ordinal1.compareTo(ordinal2)
   }
 
   override fun getPatches(parent: String, child: String, includeFirstKnownPatch: Boolean, includeLastPatch: Boolean): List<TextFilePatch> {
-    val patches = mutableListOf<TextFilePatch>()
-
-    var foundParent = false
-    var lastFound: TextFilePatch? = null
-
-    for ((sha, entry) in history) {
+    val parentOrdinal = commitOrdinals[parent] ?: return emptyList()
+    val result = mutableListOf<TextFilePatch>()
 
-      if (!foundParent) {
-        if (entry.patch != null) lastFound = entry.patch
+    val parentIndex = findLastAtOrBefore(parentOrdinal)
+    if (!includeFirstKnownPatch) {
+      if (parentIndex < 0) error("Original patch was not found")
+      result.add(patches[parentIndex]!!.materialize())
+    }
 
-        if (sha == parent) {
-          foundParent = true
-          if (!includeFirstKnownPatch) {
-            val patchToAdd = entry.patch ?: lastFound
-                             ?: error("Original patch was not found")
-            patches.add(patchToAdd)
-          }
-        }
-      }
-      else {
-        if (includeLastPatch) {
-          if (sha == child) break
-          entry.patch?.let { patches.add(it) }
-        }
-        else {
-          entry.patch?.let { patches.add(it) }
-          if (sha == child) break
-        }
-      }
+    // patches after the parent up to the child, or up to the end when the child is not after the parent
+    val childOrdinal = commitOrdinals[child]?.takeIf { it > parentOrdinal }
+    val lastOrdinal = when {
+      childOrdinal == null -> Int.MAX_VALUE
+      includeLastPatch -> childOrdinal - 1
+      else -> childOrdinal
+    }
+    var index = parentIndex + 1
+    while (index < size && ordinals[index] <= lastOrdinal) {
+      result.add(patches[index++]!!.materialize())
     }
-    return patches
+    return result
   }
 
-  private class Entry(val patch: TextFilePatch?) {
-    val filePath = patch?.filePath
+  /**
+   * Index of the last patch made in the commit with [ordinal] or before it, -1 if there is none
+   */
+  private fun findLastAtOrBefore(ordinal: Int): Int {
+    val index = ordinals.binarySearch(ordinal, 0, size)
+    return if (index >= 0) index else -index - 2
   }
 
   companion object {
-    private val TextFilePatch.filePath
-      get() = (afterName ?: beforeName)!!
+    private const val INITIAL_CAPACITY = 2
   }
-}
\ No newline at end of file
+}
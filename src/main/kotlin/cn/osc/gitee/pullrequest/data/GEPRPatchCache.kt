@@ -0,0 +1,352 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.intellij.concurrency.JobLauncher
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.PatchSyntaxException
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.registry.Registry
+import cn.osc.gitee.util.GEStreamingPatchReader
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.io.path.*
+
+/**
+ * Bounded on-disk store of pull request diffs.
+ *
+ * A diff between two commits never changes, so it is stored under the hashes of the commits as a sequence of file sections:
+ * the names of the file and the compressed diff text of the section. Sections are written while the diff is streamed in,
+ * and the [GEPRLazyTextFilePatch]es of recently used diffs are also kept in memory, so reopening a pull request needs neither network
+ * nor parsing. Only the file headers of the sections are parsed, the hunks are parsed when a patch is materialized.
+ *
+ * Enabled with the "gitee.pr.patch.cache" registry key.
+ */
+@Service
+class GEPRPatchCache internal constructor(private val cacheDir: Path,
+                                          private val maxSize: Long,
+                                          private val maxEntrySize: Int) {
+
+  constructor() : this(Path(PathManager.getSystemPath(), "gitee", "pr-patches"), MAX_CACHE_SIZE, MAX_ENTRY_SIZE)
+
+  private val memoryHits = AtomicLong()
+  private val diskHits = AtomicLong()
+  private val misses = AtomicLong()
+
+  // patches are not modified after parsing, so the same instances are handed out to every changes provider
+  private val indexedPatches = Caffeine.newBuilder()
+    .maximumSize(MAX_INDEXED_ENTRIES)
+    .softValues()
+    .build<Key, List<FilePatch>>()
+
+  // entry name -> entry file size, in access order
+  private var index: LinkedHashMap<String, Long>? = null
+  private var totalSize = 0L
+
+  val statistics: Statistics
+    get() = Statistics(memoryHits.get(), diskHits.get(), misses.get(), synchronized(this) { totalSize })
+
+  /**
+   * Returns the patches of the diff identified by [key].
+   * Only if the diff is not cached, [diffLoader] is called to stream it into the reader, and the sections are stored while they are read.
+   */
+  @Throws(IOException::class, PatchSyntaxException::class)
+  fun getPatches(key: Key, diffLoader: (GEStreamingPatchReader) -> Unit): List<FilePatch> {
+    indexedPatches.getIfPresent(key)?.let {
+      memoryHits.incrementAndGet()
+      return it
+    }
+
+    val name = entryName(key)
+    val sections = read(name)
+    if (sections != null) {
+      val patches = try {
+        parseSections(sections).flatten()
+      }
+      catch (e: PatchSyntaxException) {
+        LOG.debug("Unable to parse cached diff for $key", e)
+        remove(name)
+        null
+      }
+      if (patches != null) {
+        diskHits.incrementAndGet()
+        indexedPatches.put(key, patches)
+        return patches
+      }
+    }
+
+    misses.incrementAndGet()
+    val patches = mutableListOf<FilePatch>()
+    val writer = EntryWriter.create(cacheDir, name, maxEntrySize)
+    try {
+      diffLoader(GEStreamingPatchReader { text ->
+        val compressedText = GEPRLazyTextFilePatch.compress(text)
+        val sectionPatches = GEPRLazyTextFilePatch.parseSection(text, compressedText)
+        val patch = sectionPatches.firstOrNull() ?: return@GEStreamingPatchReader
+        writer?.write(Section(patch.beforeName, patch.afterName, compressedText), text.length)
+        patches.addAll(sectionPatches)
+      })
+      writer?.finish()?.let { size -> added(name, size) }
+    }
+    finally {
+      writer?.abandon()
+    }
+    indexedPatches.put(key, patches)
+    return patches
+  }
+
+  private fun read(name: String): List<Section>? {
+    synchronized(this) {
+      if (getIndex()[name] == null) return null
+    }
+    val file = cacheDir.resolve(name)
+    return try {
+      val sections = DataInputStream(file.inputStream().buffered()).use { readEntry(it) }
+      file.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+      sections
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to read cached diff $name", e)
+      remove(name)
+      null
+    }
+  }
+
+  private fun added(name: String, size: Long) {
+    synchronized(this) {
+      val index = getIndex()
+      index.put(name, size)?.let { totalSize -= it }
+      totalSize += size
+      evictIfNeeded(index)
+    }
+  }
+
+  private fun remove(name: String) {
+    synchronized(this) {
+      getIndex().remove(name)?.let { totalSize -= it }
+    }
+    cacheDir.resolve(name).deleteIfExists()
+  }
+
+  /**
+   * Drops the patches of the diffs with [keys] kept in memory, the diffs stay on disk
+   */
+  fun release(keys: Collection<Key>) = indexedPatches.invalidateAll(keys)
+
+  fun clear() {
+    indexedPatches.invalidateAll()
+    synchronized(this) {
+      getIndex().keys.toList().forEach { cacheDir.resolve(it).deleteIfExists() }
+      getIndex().clear()
+      totalSize = 0
+    }
+  }
+
+  private fun evictIfNeeded(index: LinkedHashMap<String, Long>) {
+    val iterator = index.entries.iterator()
+    while (totalSize > maxSize && iterator.hasNext()) {
+      val (name, size) = iterator.next()
+      iterator.remove()
+      totalSize -= size
+      cacheDir.resolve(name).deleteIfExists()
+    }
+  }
+
+  private fun getIndex(): LinkedHashMap<String, Long> {
+    index?.let { return it }
+    val loaded = LinkedHashMap<String, Long>(16, 0.75f, true)
+    totalSize = 0
+    if (cacheDir.isDirectory()) {
+      try {
+        cacheDir.listDirectoryEntries()
+          .filter { it.isRegularFile() && !it.name.endsWith(".tmp") }
+          .sortedBy { it.getLastModifiedTime() }
+          .forEach {
+            val size = it.fileSize()
+            loaded[it.name] = size
+            totalSize += size
+          }
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to load patch cache index", e)
+      }
+    }
+    index = loaded
+    evictIfNeeded(loaded)
+    return loaded
+  }
+
+  /**
+   * Diff of [oid] against [baseOid], or against the parent of [oid] when [baseOid] is null
+   */
+  data class Key(val baseOid: String?, val oid: String)
+
+  data class Statistics(val memoryHits: Long, val diskHits: Long, val misses: Long, val diskUsage: Long) {
+    val hitRate: Double
+      get() {
+        val total = memoryHits + diskHits + misses
+        return if (total == 0L) 0.0 else (memoryHits + diskHits).toDouble() / total
+      }
+  }
+
+  /**
+   * Compressed text of the part of the diff describing a single file
+   */
+  private class Section(val beforeName: String?, val afterName: String?, val compressedText: ByteArray)
+
+  /**
+   * Writes the sections of an entry to a temporary file as they come and moves it in place when the diff is read completely.
+   * Writing stops when the diff turns out to be larger than [maxEntrySize].
+   */
+  private class EntryWriter(private val cacheDir: Path, private val name: String, private val maxEntrySize: Int, private val tempFile: Path) {
+    private var output: DataOutputStream? = DataOutputStream(tempFile.outputStream().buffered()).apply { writeInt(VERSION) }
+    private var textSize = 0L
+
+    fun write(section: Section, textLength: Int) {
+      val output = output ?: return
+      textSize += textLength
+      try {
+        if (textSize > maxEntrySize) {
+          abandon()
+          return
+        }
+        output.writeBoolean(true)
+        writeSection(output, section)
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to store diff $name", e)
+        abandon()
+      }
+    }
+
+    /**
+     * Size of the stored entry, null if it was not stored
+     */
+    fun finish(): Long? {
+      val output = output ?: return null
+      this.output = null
+      return try {
+        output.use { it.writeBoolean(false) }
+        val size = tempFile.fileSize()
+        Files.move(tempFile, cacheDir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        size
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to store diff $name", e)
+        tempFile.deleteIfExists()
+        null
+      }
+    }
+
+    fun abandon() {
+      val output = output ?: return
+      this.output = null
+      try {
+        output.close()
+        tempFile.deleteIfExists()
+      }
+      catch (e: IOException) {
+        LOG.debug("Unable to remove incomplete diff $name", e)
+      }
+    }
+
+    companion object {
+      fun create(cacheDir: Path, name: String, maxEntrySize: Int): EntryWriter? =
+        try {
+          cacheDir.createDirectories()
+          EntryWriter(cacheDir, name, maxEntrySize, Files.createTempFile(cacheDir, name, ".tmp"))
+        }
+        catch (e: IOException) {
+          LOG.debug("Unable to store diff $name", e)
+          null
+        }
+    }
+  }
+
+  companion object {
+    private val LOG = logger<GEPRPatchCache>()
+
+    private const val VERSION = 2
+    private const val MAX_CACHE_SIZE = 256L * 1024 * 1024
+    private const val MAX_ENTRY_SIZE = 32 * 1024 * 1024
+    private const val MAX_INDEXED_ENTRIES = 512L
+    private const val PARALLEL_PARSING_THRESHOLD = 32
+
+    @JvmStatic
+    fun getInstance(): GEPRPatchCache = service()
+
+    internal fun getInstanceIfEnabled(): GEPRPatchCache? =
+      if (Registry.`is`("gitee.pr.patch.cache", true)) getInstance() else null
+
+    private fun entryName(key: Key): String {
+      val digest = MessageDigest.getInstance("SHA-1").digest("${key.baseOid.orEmpty()}\n${key.oid}".toByteArray())
+      return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    /**
+     * Sections of a large diff are indexed concurrently under the current progress indicator
+     */
+    @Throws(PatchSyntaxException::class)
+    private fun parseSections(sections: List<Section>): List<List<FilePatch>> {
+      if (sections.size < PARALLEL_PARSING_THRESHOLD) return sections.map(::parseSection)
+
+      val patches = arrayOfNulls<List<FilePatch>>(sections.size)
+      val error = AtomicReference<PatchSyntaxException>()
+      JobLauncher.getInstance().invokeConcurrentlyUnderProgress(sections.indices.toList(), ProgressManager.getInstance().progressIndicator) {
+        try {
+          patches[it] = parseSection(sections[it])
+          true
+        }
+        catch (e: PatchSyntaxException) {
+          error.set(e)
+          false
+        }
+      }
+      error.get()?.let { throw it }
+      return patches.map { it!! }
+    }
+
+    @Throws(PatchSyntaxException::class)
+    private fun parseSection(section: Section): List<FilePatch> =
+      GEPRLazyTextFilePatch.parseSection(GEPRLazyTextFilePatch.decompress(section.compressedText), section.compressedText)
+
+    private fun writeSection(output: DataOutputStream, section: Section) {
+      output.writeNullableUTF(section.beforeName)
+      output.writeNullableUTF(section.afterName)
+      output.writeInt(section.compressedText.size)
+      output.write(section.compressedText)
+    }
+
+    private fun readEntry(input: DataInputStream): List<Section> {
+      if (input.readInt() != VERSION) throw IOException("Unsupported cache entry version")
+      val sections = mutableListOf<Section>()
+      while (input.readBoolean()) {
+        val beforeName = input.readNullableUTF()
+        val afterName = input.readNullableUTF()
+        val compressedText = ByteArray(input.readInt())
+        input.readFully(compressedText)
+        sections.add(Section(beforeName, afterName, compressedText))
+      }
+      return sections
+    }
+
+    private fun DataOutputStream.writeNullableUTF(value: String?) {
+      writeBoolean(value != null)
+      if (value != null) writeUTF(value)
+    }
+
+    private fun DataInputStream.readNullableUTF(): String? = if (readBoolean()) readUTF() else null
+  }
+}
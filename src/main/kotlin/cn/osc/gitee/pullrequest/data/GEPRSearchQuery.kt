@@ -2,6 +2,7 @@
 package cn.osc.gitee.pullrequest.data
 
 import cn.osc.gitee.api.data.GiteeIssueState
+import cn.osc.gitee.api.data.pullrequest.GEPullRequestState
 import cn.osc.gitee.api.data.request.search.GiteeIssueSearchSort
 import cn.osc.gitee.api.util.GiteeApiSearchQueryBuilder
 import java.text.ParseException
@@ -23,6 +24,40 @@ internal class GEPRSearchQuery(private val terms: List<Term<*>>) {
 
   fun isEmpty() = terms.isEmpty()
 
+  /**
+   * Order of the results, null if they are ordered by relevance or in a direction which is not known locally
+   */
+  val sort: GiteeIssueSearchSort?
+    get() {
+      val sortTerm = terms.filterIsInstance<Term.Qualifier<*>>().find { it.apiName == QualifierName.sortBy.apiName }
+                     ?: return if (terms.any { it is Term.QueryPart }) null else GiteeIssueSearchSort.created
+      return GiteeIssueSearchSort.values().find { it.name == sortTerm.apiValue }
+    }
+
+  /**
+   * Conditions which narrow the results of [base] down to the results of this query, when this query only adds terms to [base].
+   * Null if this query does not narrow [base] down or some of the added terms can only be checked by the server.
+   */
+  fun getNarrowingConditions(base: GEPRSearchQuery?): List<GEPRListIndex.Condition>? {
+    val baseTerms = base?.terms.orEmpty()
+    // qualifiers are compared by their text, which also includes the negation
+    val baseQualifiers = baseTerms.filterIsInstance<Term.Qualifier<*>>().mapTo(HashSet()) { it.toString() }
+    val qualifiers = terms.filterIsInstance<Term.Qualifier<*>>()
+    if (!qualifiers.mapTo(HashSet()) { it.toString() }.containsAll(baseQualifiers)) return null
+
+    val baseTokens = baseTerms.filterIsInstance<Term.QueryPart>().flatMapTo(HashSet()) { it.tokens ?: return null }
+    val tokens = terms.filterIsInstance<Term.QueryPart>().flatMapTo(LinkedHashSet()) { it.tokens ?: return null }
+    if (!tokens.containsAll(baseTokens)) return null
+
+    val conditions = mutableListOf<GEPRListIndex.Condition>()
+    tokens.filter { it !in baseTokens }.mapTo(conditions) { GEPRListIndex.Condition.Text(it) }
+    for (qualifier in qualifiers) {
+      if (qualifier.toString() in baseQualifiers) continue
+      conditions.add(qualifier.toLocalCondition() ?: return null)
+    }
+    return conditions
+  }
+
   override fun toString(): String = terms.joinToString(" ")
 
   override fun equals(other: Any?): Boolean {
@@ -106,6 +141,11 @@ internal class GEPRSearchQuery(private val terms: List<Term<*>>) {
     class QueryPart(value: String) : Term<String>(value) {
       override val apiValue = this.value
 
+      /**
+       * Words searched for in the titles, null if the text holds qualifiers typed by hand
+       */
+      val tokens: List<String>? = if (value.contains(':')) null else GEPRListIndex.tokenize(value)
+
       override fun toString(): String = value
     }
 
@@ -114,6 +154,18 @@ internal class GEPRSearchQuery(private val terms: List<Term<*>>) {
 
       override fun toString(): String = "$name:$value"
 
+      /**
+       * Condition checking this qualifier on the loaded pull requests, null if it can only be checked by the server
+       */
+      open fun toLocalCondition(): GEPRListIndex.Condition? = null
+
+      protected fun stateCondition(state: String): GEPRListIndex.Condition? = when (state) {
+        GiteeIssueState.open.name -> GEPRListIndex.Condition.State(setOf(GEPullRequestState.OPEN))
+        GiteeIssueState.closed.name -> GEPRListIndex.Condition.State(setOf(GEPullRequestState.CLOSED, GEPullRequestState.MERGED))
+        "merged" -> GEPRListIndex.Condition.State(setOf(GEPullRequestState.MERGED))
+        else -> null
+      }
+
       class Simple(name: QualifierName, value: String) : Qualifier<String>(name, value) {
         override val apiValue = this.value
 
@@ -124,6 +176,18 @@ internal class GEPRSearchQuery(private val terms: List<Term<*>>) {
           return this
         }
 
+        override fun toLocalCondition(): GEPRListIndex.Condition? {
+          // the current user is resolved by the server
+          if (not || value.startsWith("@")) return null
+          return when (name) {
+            QualifierName.`is`, QualifierName.state -> stateCondition(value)
+            QualifierName.author -> GEPRListIndex.Condition.Author(value)
+            QualifierName.assignee -> GEPRListIndex.Condition.Assignee(value)
+            QualifierName.label -> GEPRListIndex.Condition.Label(value.removeSurrounding("\""))
+            else -> null
+          }
+        }
+
         override fun toString(): String {
           val minus = if (not) "-" else ""
           return "$minus$name:$value"
@@ -133,6 +197,9 @@ internal class GEPRSearchQuery(private val terms: List<Term<*>>) {
       class Enum<T : kotlin.Enum<T>>(name: QualifierName, value: T) : Qualifier<kotlin.Enum<T>>(name, value) {
         override val apiValue = this.value.name
 
+        override fun toLocalCondition(): GEPRListIndex.Condition? =
+          if (value is GiteeIssueState && (name == QualifierName.`is` || name == QualifierName.state)) stateCondition(value.name) else null
+
         companion object {
           inline fun <reified T : kotlin.Enum<T>> from(name: QualifierName, value: String): Term<*> {
             return try {
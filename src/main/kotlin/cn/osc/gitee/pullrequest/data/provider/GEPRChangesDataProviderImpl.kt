@@ -3,6 +3,7 @@ package cn.osc.gitee.pullrequest.data.provider
 
 import com.google.common.graph.Traverser
 import com.intellij.openapi.Disposable
+import com.intellij.openapi.util.LowMemoryWatcher
 import cn.osc.gitee.api.data.GECommit
 import cn.osc.gitee.pullrequest.data.GEPRIdentifier
 import cn.osc.gitee.pullrequest.data.service.GEPRChangesService
@@ -46,7 +47,7 @@ class GEPRChangesDataProviderImpl(private val changesService: GEPRChangesService
 
   private val changesProviderValue = LazyCancellableBackgroundProcessValue.create { indicator ->
     val commitsRequest = apiCommitsRequestValue.value
-
+    // diffs of the revisions which are already fetched are computed locally, the rest is loaded via API
     detailsData.loadDetails()
       .thenCompose {
         changesService.loadMergeBaseOid(indicator, it.baseRefOid, it.headRefOid)
@@ -57,6 +58,10 @@ class GEPRChangesDataProviderImpl(private val changesService: GEPRChangesService
       }
   }
 
+  init {
+    LowMemoryWatcher.register(Runnable { changesProviderValue.lastLoadedValue?.releaseMaterializedPatches() }, this)
+  }
+
   override fun loadChanges() = changesProviderValue.value
 
   override fun reloadChanges() {
@@ -21,9 +21,6 @@ interface GEPRChangesService {
   fun loadCommitsFromApi(progressIndicator: ProgressIndicator, pullRequestId: GEPRIdentifier)
     : CompletableFuture<Pair<GECommit, Graph<GECommit>>>
 
-  @CalledInAny
-  fun loadCommitDiffs(progressIndicator: ProgressIndicator, baseRefOid: String, oid: String): CompletableFuture<Pair<String, String>>
-
   @CalledInAny
   fun loadMergeBaseOid(progressIndicator: ProgressIndicator, baseRefOid: String, headRefOid: String): CompletableFuture<String>
 
@@ -7,15 +7,24 @@ import com.google.common.graph.ImmutableGraph
 import com.google.common.graph.Traverser
 import com.intellij.collaboration.async.CompletableFutureUtil
 import com.intellij.collaboration.async.CompletableFutureUtil.submitIOTask
+import com.intellij.execution.process.ProcessOutputTypes
 import git4idea.remote.GitRemoteUrlCoordinates
 import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.diff.impl.patch.FilePatch
-import com.intellij.openapi.diff.impl.patch.PatchReader
+import com.intellij.openapi.diff.impl.patch.PatchSyntaxException
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.progress.util.ProgressWrapper
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Key
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vcs.VcsException
+import git4idea.commands.Git
+import git4idea.commands.GitCommand
+import git4idea.commands.GitLineHandler
+import git4idea.commands.GitLineHandlerListener
 import git4idea.fetch.GitFetchSupport
 import cn.osc.gitee.api.GEGQLRequests
 import cn.osc.gitee.api.GERepositoryCoordinates
@@ -27,10 +36,16 @@ import cn.osc.gitee.api.util.SimpleGHGQLPagesLoader
 import cn.osc.gitee.pullrequest.data.GEPRChangesProvider
 import cn.osc.gitee.pullrequest.data.GEPRChangesProviderImpl
 import cn.osc.gitee.pullrequest.data.GEPRIdentifier
+import cn.osc.gitee.pullrequest.data.GEPRLazyTextFilePatch
+import cn.osc.gitee.pullrequest.data.GEPRPatchCache
 import cn.osc.gitee.pullrequest.data.service.GEServiceUtil.logError
+import cn.osc.gitee.util.GEPatchComposer
+import cn.osc.gitee.util.GEStreamingPatchReader
 import java.util.concurrent.CancellationException
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 
 class GEPRChangesServiceImpl(private val progressManager: ProgressManager,
                              private val project: Project,
@@ -38,6 +53,8 @@ class GEPRChangesServiceImpl(private val progressManager: ProgressManager,
                              private val gitRemote: GitRemoteUrlCoordinates,
                              private val ghRepository: GERepositoryCoordinates) : GEPRChangesService {
 
+  private val localRevisions: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
   override fun fetch(progressIndicator: ProgressIndicator, refspec: String) =
     progressManager.submitIOTask(progressIndicator) {
       GitFetchSupport.fetchSupport(project)
@@ -54,15 +71,89 @@ class GEPRChangesServiceImpl(private val progressManager: ProgressManager,
       }).loadAll(indicator).map { it.commit }.let(::buildCommitsTree)
     }.logError(LOG, "Error occurred while loading commits for PR ${pullRequestId.number}")
 
-  override fun loadCommitDiffs(progressIndicator: ProgressIndicator, baseRefOid: String, oid: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      val commitDiff = requestExecutor.execute(it,
-                                               GiteeApiRequests.Repos.Commits.getDiff(ghRepository, oid))
+  /**
+   * Whether diffs are computed with local git when the revisions were already fetched
+   */
+  private val prefersLocalObjects: Boolean
+    get() = Registry.`is`("gitee.pr.changes.local.diff", true)
+
+  private fun loadCommitPatches(indicator: ProgressIndicator, oid: String, cacheKeys: MutableCollection<GEPRPatchCache.Key>): List<FilePatch> =
+    loadPatches(GEPRPatchCache.Key(null, oid), cacheKeys) { reader ->
+      if (!readLocalDiff("$oid^", oid, reader))
+        requestExecutor.execute(indicator, GiteeApiRequests.Repos.Commits.getDiff(ghRepository, oid, reader::read))
+    }
 
-      val cumulativeDiff = requestExecutor.execute(it,
-                                                   GiteeApiRequests.Repos.Commits.getDiff(ghRepository, baseRefOid, oid))
-      commitDiff to cumulativeDiff
-    }.logError(LOG, "Error occurred while loading diffs for commit $oid")
+  private fun loadPatches(indicator: ProgressIndicator, baseOid: String, oid: String,
+                          cacheKeys: MutableCollection<GEPRPatchCache.Key>): List<FilePatch> =
+    loadPatches(GEPRPatchCache.Key(baseOid, oid), cacheKeys) { reader ->
+      if (!readLocalDiff(baseOid, oid, reader))
+        requestExecutor.execute(indicator, GiteeApiRequests.Repos.Commits.getDiff(ghRepository, baseOid, oid, reader::read))
+    }
+
+  /**
+   * Patches are indexed file by file while the diff is streamed from [diffLoader], the hunks are parsed when a patch is materialized.
+   * [key] is added to [cacheKeys] when the patches are kept by the cache.
+   */
+  private fun loadPatches(key: GEPRPatchCache.Key, cacheKeys: MutableCollection<GEPRPatchCache.Key>,
+                          diffLoader: (GEStreamingPatchReader) -> Unit): List<FilePatch> {
+    GEPRPatchCache.getInstanceIfEnabled()?.let {
+      cacheKeys.add(key)
+      return it.getPatches(key, diffLoader)
+    }
+    val patches = mutableListOf<FilePatch>()
+    diffLoader(GEStreamingPatchReader { patches.addAll(GEPRLazyTextFilePatch.parseSection(it)) })
+    return patches
+  }
+
+  /**
+   * Streams the output of local git into [reader] when both revisions were already fetched,
+   * false when the diff can't be computed locally and nothing was passed to [reader]
+   */
+  @Throws(VcsException::class)
+  private fun readLocalDiff(fromRevision: String, toRevision: String, reader: GEStreamingPatchReader): Boolean {
+    if (!prefersLocalObjects || !isAvailableLocally(fromRevision) || !isAvailableLocally(toRevision)) return false
+    val handler = GitLineHandler(project, gitRemote.repository.root, GitCommand.DIFF).apply {
+      setSilent(true)
+      addParameters("--no-color", "--no-ext-diff", "--no-textconv", "-M", "--src-prefix=a/", "--dst-prefix=b/",
+                    fromRevision, toRevision)
+    }
+    var started = false
+    var readerError: Throwable? = null
+    handler.addLineListener(object : GitLineHandlerListener {
+      override fun onLineAvailable(line: String, outputType: Key<*>) {
+        if (outputType != ProcessOutputTypes.STDOUT || readerError != null) return
+        started = true
+        try {
+          reader.readLine(line)
+        }
+        catch (e: Throwable) {
+          readerError = e
+        }
+      }
+    })
+    val result = Git.getInstance().runCommandWithoutCollectingOutput(handler)
+    readerError?.let { throw it }
+    if (!result.success()) {
+      // the sections which were already read can't be taken back
+      if (started) throw VcsException(result.errorOutputAsJoinedString)
+      LOG.debug("Unable to compute diff between $fromRevision and $toRevision locally: ${result.errorOutputAsJoinedString}")
+      return false
+    }
+    reader.finish()
+    return true
+  }
+
+  private fun isAvailableLocally(revision: String): Boolean {
+    // objects are never removed while the changes are loaded, so only the presence is remembered
+    if (localRevisions.contains(revision)) return true
+    val handler = GitLineHandler(project, gitRemote.repository.root, GitCommand.REV_PARSE).apply {
+      setSilent(true)
+      addParameters("--verify", "--quiet", "$revision^{commit}")
+    }
+    val available = Git.getInstance().runCommand(handler).success()
+    if (available) localRevisions.add(revision)
+    return available
+  }
 
   override fun loadMergeBaseOid(progressIndicator: ProgressIndicator, baseRefOid: String, headRefOid: String) =
     progressManager.submitIOTask(progressIndicator) {
@@ -73,23 +164,118 @@ class GEPRChangesServiceImpl(private val progressManager: ProgressManager,
   override fun createChangesProvider(progressIndicator: ProgressIndicator, mergeBaseOid: String, commits: Pair<GECommit, Graph<GECommit>>) =
     progressManager.submitIOTask(progressIndicator) {
       val (lastCommit, graph) = commits
-      val commitsDiffsRequests = mutableMapOf<GECommit, CompletableFuture<Pair<String, String>>>()
-      for (commit in Traverser.forGraph(graph).depthFirstPostOrder(lastCommit)) {
-        commitsDiffsRequests[commit] = loadCommitDiffs(ProgressWrapper.wrap(it), mergeBaseOid, commit.oid)
-      }
+      val commitsInOrder = Traverser.forGraph(graph).depthFirstPostOrder(lastCommit).toList()
+      val timings = StageTimings()
+      val cacheKeys = ConcurrentHashMap.newKeySet<GEPRPatchCache.Key>()
 
-      CompletableFuture.allOf(*commitsDiffsRequests.values.toTypedArray()).joinCancellable()
-      val patchesByCommits = commitsDiffsRequests.mapValues { (_, request) ->
-        val diffs = request.joinCancellable()
-        val commitPatches = readAllPatches(diffs.first)
-        val cumulativePatches = readAllPatches(diffs.second)
-        commitPatches to cumulativePatches
+      val patchesByCommits = if (isSingleChain(mergeBaseOid, commitsInOrder)) {
+        loadComposedPatches(it, mergeBaseOid, commitsInOrder, cacheKeys, timings)
+      }
+      else {
+        timings.measure("patches") { loadCumulativePatches(it, mergeBaseOid, commitsInOrder, cacheKeys) }
       }
       it.checkCanceled()
 
-      GEPRChangesProviderImpl(gitRemote.repository, mergeBaseOid, graph, lastCommit, patchesByCommits) as GEPRChangesProvider
+      val provider = timings.measure("provider") {
+        GEPRChangesProviderImpl(gitRemote.repository, mergeBaseOid, graph, lastCommit, patchesByCommits, cacheKeys)
+      }
+      LOG.debug("Changes of ${commitsInOrder.size} commits built in $timings")
+      provider as GEPRChangesProvider
     }.logError(LOG, "Error occurred while building changes from commits")
 
+  /**
+   * Loads the diff of every commit and only the final cumulative diff,
+   * cumulative patches of the intermediate commits are composed from the commit patches
+   */
+  private fun loadComposedPatches(indicator: ProgressIndicator, mergeBaseOid: String, commits: List<GECommit>,
+                                  cacheKeys: MutableCollection<GEPRPatchCache.Key>, timings: StageTimings)
+    : Map<GECommit, Pair<List<FilePatch>, List<FilePatch>>> {
+    val lastCommit = commits.last()
+    val commitPatchesRequests = commits.associateWith { commit ->
+      progressManager.submitIOTask(ProgressWrapper.wrap(indicator)) {
+        loadCommitPatches(it, commit.oid, cacheKeys)
+      }
+    }
+    val cumulativePatchesRequest = progressManager.submitIOTask(ProgressWrapper.wrap(indicator)) {
+      loadPatches(it, mergeBaseOid, lastCommit.oid, cacheKeys)
+    }
+    timings.measure("patches") {
+      CompletableFuture.allOf(cumulativePatchesRequest, *commitPatchesRequests.values.toTypedArray()).joinCancellable()
+    }
+
+    val patchesByCommits = LinkedHashMap<GECommit, Pair<List<FilePatch>, List<FilePatch>>>()
+    timings.measure("composition") {
+      var previousCumulativePatches = emptyList<FilePatch>()
+      for (commit in commits) {
+        indicator.checkCanceled()
+        val commitPatches = commitPatchesRequests.getValue(commit).joinCancellable()
+        val cumulativePatches = if (commit == lastCommit) cumulativePatchesRequest.joinCancellable()
+        else composeCumulativePatches(previousCumulativePatches, commitPatches) ?: run {
+          LOG.debug("Unable to compose cumulative patches for commit ${commit.oid}")
+          loadPatches(indicator, mergeBaseOid, commit.oid, cacheKeys)
+        }
+        patchesByCommits[commit] = commitPatches to cumulativePatches
+        previousCumulativePatches = cumulativePatches
+      }
+      // the patches materialized for the composition are not needed until the files are opened
+      for ((commitPatches, cumulativePatches) in patchesByCommits.values) {
+        (commitPatches + cumulativePatches).forEach { (it as? GEPRLazyTextFilePatch)?.release() }
+      }
+    }
+    return patchesByCommits
+  }
+
+  /**
+   * Composes the patches of the files changed by both lists, the composed patches are packed right away
+   */
+  private fun composeCumulativePatches(cumulativePatches: List<FilePatch>, patches: List<FilePatch>): List<FilePatch>? {
+    val composed = GEPatchComposer.composeCumulative(cumulativePatches, patches) { patch ->
+      try {
+        (patch as? GEPRLazyTextFilePatch)?.materialize() ?: patch as? TextFilePatch
+      }
+      catch (e: PatchSyntaxException) {
+        LOG.debug("Unable to parse patch of ${patch.afterName ?: patch.beforeName}", e)
+        null
+      }
+    } ?: return null
+    return composed.map { if (it is TextFilePatch) GEPRLazyTextFilePatch.create(it) else it }
+  }
+
+  /**
+   * Loads the patches of every commit along with the cumulative patches from the merge base
+   */
+  private fun loadCumulativePatches(indicator: ProgressIndicator, mergeBaseOid: String, commits: List<GECommit>,
+                                    cacheKeys: MutableCollection<GEPRPatchCache.Key>)
+    : Map<GECommit, Pair<List<FilePatch>, List<FilePatch>>> {
+    val commitsPatchesRequests = commits.associateWith { commit ->
+      progressManager.submitIOTask(ProgressWrapper.wrap(indicator)) {
+        loadCommitPatches(it, commit.oid, cacheKeys) to loadPatches(it, mergeBaseOid, commit.oid, cacheKeys)
+      }
+    }
+
+    CompletableFuture.allOf(*commitsPatchesRequests.values.toTypedArray()).joinCancellable()
+    return commitsPatchesRequests.mapValues { (_, request) -> request.joinCancellable() }
+  }
+
+  /**
+   * Durations of the stages of building the changes, for the debug log
+   */
+  private class StageTimings {
+    private val durations = LinkedHashMap<String, Long>()
+
+    fun <T> measure(stage: String, block: () -> T): T {
+      val start = System.nanoTime()
+      try {
+        return block()
+      }
+      finally {
+        durations[stage] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+      }
+    }
+
+    override fun toString() = durations.entries.joinToString { (stage, duration) -> "$stage: ${duration}ms" }
+  }
+
   companion object {
     private val LOG = logger<GEPRChangesService>()
 
@@ -107,10 +293,16 @@ class GEPRChangesServiceImpl(private val progressManager: ProgressManager,
       }
     }
 
-    private fun readAllPatches(diffFile: String): List<FilePatch> {
-      val reader = PatchReader(diffFile, true)
-      reader.parseAllPatches()
-      return reader.allPatches
+    /**
+     * Whether every commit is a child of the previous one, starting from the merge base
+     */
+    private fun isSingleChain(mergeBaseOid: String, commits: List<GECommit>): Boolean {
+      var parent = mergeBaseOid
+      for (commit in commits) {
+        if (commit.parents.singleOrNull()?.oid != parent) return false
+        parent = commit.oid
+      }
+      return true
     }
 
     private fun buildCommitsTree(commits: List<GECommit>): Pair<GECommit, Graph<GECommit>> {
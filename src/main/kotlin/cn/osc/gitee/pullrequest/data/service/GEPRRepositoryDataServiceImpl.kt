@@ -40,7 +40,7 @@ class GEPRRepositoryDataServiceImpl internal constructor(progressManager: Progre
 
   private val collaboratorsValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GiteeApiPagesLoader
-      .loadAll(requestExecutor, indicator,
+      .loadAllParallel(requestExecutor, indicator,
                GiteeApiRequests.Repos.Collaborators.pages(serverPath, repoPath.owner, repoPath.repository))
   }
 
@@ -70,7 +70,7 @@ class GEPRRepositoryDataServiceImpl internal constructor(progressManager: Progre
 
   private val assigneesValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GiteeApiPagesLoader
-      .loadAll(requestExecutor, indicator,
+      .loadAllParallel(requestExecutor, indicator,
                GiteeApiRequests.Repos.Assignees.pages(serverPath, repoPath.owner, repoPath.repository))
       .map { GEUser(it.nodeId, it.login, it.htmlUrl, it.avatarUrl ?: "", null) }
   }
@@ -80,7 +80,7 @@ class GEPRRepositoryDataServiceImpl internal constructor(progressManager: Progre
 
   private val labelsValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GiteeApiPagesLoader
-      .loadAll(requestExecutor, indicator,
+      .loadAllParallel(requestExecutor, indicator,
                GiteeApiRequests.Repos.Labels.pages(serverPath, repoPath.owner, repoPath.repository))
       .map { GELabel(it.nodeId, it.url, it.name, it.color) }
   }
@@ -17,6 +17,8 @@ import com.intellij.ui.scale.JBUIScale
 import com.intellij.util.ui.JBUI
 import com.intellij.util.ui.StatusText
 import com.intellij.util.ui.UIUtil
+import com.intellij.util.ui.update.Activatable
+import com.intellij.util.ui.update.UiNotifyConnector
 import com.intellij.util.ui.scroll.BoundedRangeModelThresholdListener
 import com.intellij.vcs.log.ui.frame.ProgressStripe
 import kotlinx.coroutines.CoroutineScope
@@ -101,6 +103,10 @@ internal class GEPRListPanelFactory(private val project: Project,
       add(errorPane)
     }
     val listLoaderPanel = createListLoaderPanel(listLoader, list, disposable)
+    Disposer.register(disposable, UiNotifyConnector(listLoaderPanel, object : Activatable {
+      override fun showNotify() = listUpdatesChecker.setActive(true)
+      override fun hideNotify() = listUpdatesChecker.setActive(false)
+    }))
     return JBUI.Panels.simplePanel(listLoaderPanel).addToTop(controlsPanel).andTransparent().also {
       DataManager.registerDataProvider(it) { dataId ->
         if (GEPRActionKeys.SELECTED_PULL_REQUEST.`is`(dataId)) {
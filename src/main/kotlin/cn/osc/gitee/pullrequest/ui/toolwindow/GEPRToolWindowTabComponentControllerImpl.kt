@@ -137,6 +137,8 @@ internal class GEPRToolWindowTabComponentControllerImpl(
         listModel.add(loadedData.subList(startIdx, loadedData.size))
       }
 
+      override fun onDataInserted(startIdx: Int, endIdx: Int) = listModel.addAll(startIdx, listLoader.loadedData.subList(startIdx, endIdx))
+
       override fun onDataUpdated(idx: Int) = listModel.setElementAt(listLoader.loadedData[idx], idx)
       override fun onDataRemoved(data: Any) {
         (data as? GEPullRequestShort)?.let { listModel.remove(it) }
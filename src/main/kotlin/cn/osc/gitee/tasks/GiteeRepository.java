@@ -108,10 +108,7 @@ final class GiteeRepository extends BaseRepository {
     try {
       return getIssues(query, offset + limit, withClosed);
     }
-    catch (GiteeRateLimitExceededException e) {
-      return Task.EMPTY_ARRAY;
-    }
-    catch (GiteeAuthenticationException | GiteeStatusCodeException e) {
+    catch (GiteeAuthenticationException | GiteeStatusCodeException | GiteeRateLimitExceededException e) {
       throw new Exception(e.getMessage(), e); // Wrap to show error message
     }
     catch (GiteeJsonException e) {
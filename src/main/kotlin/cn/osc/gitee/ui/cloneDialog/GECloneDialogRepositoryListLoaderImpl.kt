@@ -62,14 +62,14 @@ internal class GECloneDialogRepositoryListLoaderImpl : GECloneDialogRepositoryLi
           }
         }
       }
-      GiteeApiPagesLoader.loadAll(executor, indicator, repoPagesRequest, pageItemsConsumer)
+      GiteeApiPagesLoader.loadAllParallel(executor, indicator, repoPagesRequest, pageItemsConsumer = pageItemsConsumer)
 
       val orgsRequest = GiteeApiRequests.CurrentUser.Orgs.pages(account.server)
       val userOrganizations = GiteeApiPagesLoader.loadAll(executor, indicator, orgsRequest).sortedBy { it.login }
 
       for (org in userOrganizations) {
         val orgRepoRequest = GiteeApiRequests.Organisations.Repos.pages(account.server, org.login, GiteeRequestPagination.DEFAULT)
-        GiteeApiPagesLoader.loadAll(executor, indicator, orgRepoRequest, pageItemsConsumer)
+        GiteeApiPagesLoader.loadAllParallel(executor, indicator, orgRepoRequest, pageItemsConsumer = pageItemsConsumer)
       }
     }.whenComplete { _, _ ->
       indicatorsMap.remove(account)
@@ -0,0 +1,284 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.util
+
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.PatchHunk
+import com.intellij.openapi.diff.impl.patch.PatchLine
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import java.util.BitSet
+
+/**
+ * Builds the patch from A to C out of the patches from A to B and from B to C,
+ * without the contents of the files, using only the lines known from the patches themselves.
+ */
+object GEPatchComposer {
+
+  private const val CONTEXT_SIZE = 3
+
+  /**
+   * Applies [patches] on top of [cumulativePatches] file by file.
+   * Only the patches of the files changed by both are turned into text patches with [materialize], the others are kept as is.
+   * Null when some file can't be composed, e.g. when a patch is binary or the patches contradict each other.
+   */
+  fun composeCumulative(cumulativePatches: List<FilePatch>, patches: List<FilePatch>,
+                        materialize: (FilePatch) -> TextFilePatch? = { it as? TextFilePatch }): List<FilePatch>? {
+    // indices of the cumulative patches by the path a file is matched by, in the order of the patches
+    val deletedByBeforeName = HashMap<String, ArrayDeque<Int>>()
+    val byAfterName = HashMap<String, ArrayDeque<Int>>()
+    cumulativePatches.forEachIndexed { index, patch ->
+      if (patch.isDeletedFile) patch.beforeName?.let { deletedByBeforeName.getOrPut(it, ::ArrayDeque).add(index) }
+      else patch.afterName?.let { byAfterName.getOrPut(it, ::ArrayDeque).add(index) }
+    }
+    val composedIndices = BitSet(cumulativePatches.size)
+    val result = mutableListOf<FilePatch>()
+
+    for (patch in patches) {
+      val previousIndex = if (patch.isNewFile) patch.afterName?.let { deletedByBeforeName[it]?.removeFirstOrNull() }
+      else patch.beforeName?.let { byAfterName[it]?.removeFirstOrNull() }
+
+      if (previousIndex == null) {
+        result.add(patch)
+        continue
+      }
+      val previous = cumulativePatches[previousIndex]
+      composedIndices.set(previousIndex)
+
+      // file was added and removed again
+      if (previous.isNewFile && patch.isDeletedFile) continue
+      val composed = compose(materialize(previous) ?: return null, materialize(patch) ?: return null) ?: return null
+      // file is the same as it was before
+      if (composed.hunks.isEmpty() && composed.beforeName == composed.afterName) continue
+      result.add(composed)
+    }
+    cumulativePatches.forEachIndexed { index, patch -> if (!composedIndices.get(index)) result.add(patch) }
+    return result.sortedBy { it.afterName ?: it.beforeName }
+  }
+
+  /**
+   * Composes the patch of a single file, null if the patches don't match each other or some context is missing
+   */
+  fun compose(first: TextFilePatch, second: TextFilePatch): TextFilePatch? {
+    val firstModel = PatchModel.create(first)
+    val secondModel = PatchModel.create(second)
+
+    // lines of the intermediate state known from both patches
+    val middle = HashMap(firstModel.after)
+    for ((index, line) in secondModel.before) {
+      val known = middle.putIfAbsent(index, line)
+      if (known != null && known.text != line.text) return null
+    }
+
+    val changes = composeChanges(firstModel.changes, secondModel.changes, middle) ?: return null
+    val hunks = buildHunks(changes) { beforeIndex, afterIndex ->
+      firstModel.before[beforeIndex] ?: secondModel.after[afterIndex]
+    } ?: return null
+
+    val resultHunks = when {
+      first.isNewFile -> listOf(asNewContent(hunks.singleOrNull() ?: return null))
+      second.isDeletedFile -> listOf(asDeletedContent(hunks.singleOrNull() ?: return null))
+      else -> hunks
+    }
+
+    return TextFilePatch(second.charset).apply {
+      beforeName = first.beforeName
+      afterName = second.afterName
+      beforeVersionId = first.beforeVersionId
+      afterVersionId = second.afterVersionId
+      resultHunks.forEach(::addHunk)
+    }
+  }
+
+  /**
+   * Merges the changes overlapping in the intermediate state into one
+   */
+  private fun composeChanges(firstChanges: List<Change>, secondChanges: List<Change>, middle: Map<Int, PatchLine>): List<Change>? {
+    val result = mutableListOf<Change>()
+    // shifts of unchanged intermediate lines to the initial and the final state
+    var beforeShift = 0
+    var afterShift = 0
+
+    var i = 0
+    var j = 0
+    while (i < firstChanges.size || j < secondChanges.size) {
+      val clusterFirst = mutableListOf<Change>()
+      val clusterSecond = mutableListOf<Change>()
+      val startsWithFirst = j >= secondChanges.size || (i < firstChanges.size && firstChanges[i].start2 <= secondChanges[j].start1)
+      val clusterStart = if (startsWithFirst) firstChanges[i].start2 else secondChanges[j].start1
+      var clusterEnd = clusterStart
+      while (true) {
+        if (i < firstChanges.size && firstChanges[i].start2 <= clusterEnd) {
+          val change = firstChanges[i++]
+          clusterFirst.add(change)
+          clusterEnd = maxOf(clusterEnd, change.end2)
+        }
+        else if (j < secondChanges.size && secondChanges[j].start1 <= clusterEnd) {
+          val change = secondChanges[j++]
+          clusterSecond.add(change)
+          clusterEnd = maxOf(clusterEnd, change.end1)
+        }
+        else break
+      }
+
+      val removed = collectLines(clusterStart, clusterEnd, clusterFirst, { it.start2 }, { it.added.size }, { it.removed }, middle)
+                    ?: return null
+      val added = collectLines(clusterStart, clusterEnd, clusterSecond, { it.start1 }, { it.removed.size }, { it.added }, middle)
+                  ?: return null
+      Change(clusterStart + beforeShift, removed, clusterStart + afterShift, added).trim()?.let(result::add)
+
+      beforeShift += clusterFirst.sumOf { it.removed.size - it.added.size }
+      afterShift += clusterSecond.sumOf { it.added.size - it.removed.size }
+    }
+    return result
+  }
+
+  /**
+   * Collects the lines of the initial or the final state which correspond to the intermediate lines from [start] to [end]
+   */
+  private fun collectLines(start: Int, end: Int,
+                           changes: List<Change>,
+                           middleStart: (Change) -> Int,
+                           middleSize: (Change) -> Int,
+                           replacement: (Change) -> List<PatchLine>,
+                           middle: Map<Int, PatchLine>): List<PatchLine>? {
+    val lines = mutableListOf<PatchLine>()
+    var position = start
+    var index = 0
+    while (true) {
+      if (index < changes.size && middleStart(changes[index]) == position) {
+        val change = changes[index++]
+        lines.addAll(replacement(change))
+        position += middleSize(change)
+        continue
+      }
+      if (position >= end) break
+      lines.add(middle[position] ?: return null)
+      position++
+    }
+    return lines
+  }
+
+  private fun buildHunks(changes: List<Change>, findContext: (Int, Int) -> PatchLine?): List<PatchHunk>? {
+    val hunks = mutableListOf<PatchHunk>()
+    var groupStart = 0
+    while (groupStart < changes.size) {
+      var groupEnd = groupStart + 1
+      while (groupEnd < changes.size && changes[groupEnd].start1 - changes[groupEnd - 1].end1 <= 2 * CONTEXT_SIZE) groupEnd++
+      val group = changes.subList(groupStart, groupEnd)
+      val first = group.first()
+      val last = group.last()
+
+      var leading = 0
+      while (leading < CONTEXT_SIZE && first.start1 - leading > 0 && first.start2 - leading > 0 &&
+             findContext(first.start1 - leading - 1, first.start2 - leading - 1) != null) leading++
+      var trailing = 0
+      while (trailing < CONTEXT_SIZE && findContext(last.end1 + trailing, last.end2 + trailing) != null) trailing++
+
+      val hunk = PatchHunk(first.start1 - leading, last.end1 + trailing, first.start2 - leading, last.end2 + trailing)
+      for (offset in leading downTo 1) {
+        hunk.addLine(copyLine(findContext(first.start1 - offset, first.start2 - offset)!!, PatchLine.Type.CONTEXT))
+      }
+      for ((index, change) in group.withIndex()) {
+        change.removed.forEach { hunk.addLine(copyLine(it, PatchLine.Type.REMOVE)) }
+        change.added.forEach { hunk.addLine(copyLine(it, PatchLine.Type.ADD)) }
+        val next = group.getOrNull(index + 1) ?: break
+        for (offset in 0 until next.start1 - change.end1) {
+          val line = findContext(change.end1 + offset, change.end2 + offset) ?: return null
+          hunk.addLine(copyLine(line, PatchLine.Type.CONTEXT))
+        }
+      }
+      for (offset in 0 until trailing) {
+        hunk.addLine(copyLine(findContext(last.end1 + offset, last.end2 + offset)!!, PatchLine.Type.CONTEXT))
+      }
+      hunks.add(hunk)
+      groupStart = groupEnd
+    }
+    return hunks
+  }
+
+  private fun asNewContent(hunk: PatchHunk) = PatchHunk(-1, -1, hunk.startLineAfter, hunk.endLineAfter).apply {
+    hunk.lines.forEach(::addLine)
+  }
+
+  private fun asDeletedContent(hunk: PatchHunk) = PatchHunk(hunk.startLineBefore, hunk.endLineBefore, -1, -1).apply {
+    hunk.lines.forEach(::addLine)
+  }
+
+  private fun copyLine(line: PatchLine, type: PatchLine.Type) = PatchLine(type, line.text).also {
+    it.isSuppressNewLine = line.isSuppressNewLine
+  }
+
+  /**
+   * Lines from [start1] are replaced with [removed] lines by [added] lines from [start2]
+   */
+  private class Change(val start1: Int, val removed: List<PatchLine>, val start2: Int, val added: List<PatchLine>) {
+    val end1 = start1 + removed.size
+    val end2 = start2 + added.size
+
+    /**
+     * Drops the lines which were changed and then changed back, null if nothing is left
+     */
+    fun trim(): Change? {
+      var prefix = 0
+      while (prefix < removed.size && prefix < added.size && isSame(removed[prefix], added[prefix])) prefix++
+      var suffix = 0
+      while (suffix < removed.size - prefix && suffix < added.size - prefix &&
+             isSame(removed[removed.size - suffix - 1], added[added.size - suffix - 1])) suffix++
+      if (prefix == removed.size && prefix == added.size) return null
+      if (prefix == 0 && suffix == 0) return this
+      return Change(start1 + prefix, removed.subList(prefix, removed.size - suffix),
+                    start2 + prefix, added.subList(prefix, added.size - suffix))
+    }
+
+    private fun isSame(line1: PatchLine, line2: PatchLine) = line1.text == line2.text && line1.isSuppressNewLine == line2.isSuppressNewLine
+  }
+
+  /**
+   * Changes of a patch and the lines of both sides known from it
+   */
+  private class PatchModel(val changes: List<Change>, val before: Map<Int, PatchLine>, val after: Map<Int, PatchLine>) {
+    companion object {
+      fun create(patch: TextFilePatch): PatchModel {
+        val changes = mutableListOf<Change>()
+        val before = HashMap<Int, PatchLine>()
+        val after = HashMap<Int, PatchLine>()
+
+        for (hunk in patch.hunks) {
+          var line1 = maxOf(hunk.startLineBefore, 0)
+          var line2 = maxOf(hunk.startLineAfter, 0)
+          var changeStart1 = line1
+          var changeStart2 = line2
+          var removed = mutableListOf<PatchLine>()
+          var added = mutableListOf<PatchLine>()
+
+          fun flush() {
+            if (removed.isNotEmpty() || added.isNotEmpty()) changes.add(Change(changeStart1, removed, changeStart2, added))
+            removed = mutableListOf()
+            added = mutableListOf()
+          }
+
+          for (line in hunk.lines) {
+            when (line.type) {
+              PatchLine.Type.CONTEXT -> {
+                flush()
+                before[line1++] = line
+                after[line2++] = line
+                changeStart1 = line1
+                changeStart2 = line2
+              }
+              PatchLine.Type.REMOVE -> {
+                removed.add(line)
+                before[line1++] = line
+              }
+              PatchLine.Type.ADD -> {
+                added.add(line)
+                after[line2++] = line
+              }
+            }
+          }
+          flush()
+        }
+        return PatchModel(changes, before, after)
+      }
+    }
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.util
+
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.PatchReader
+import com.intellij.openapi.diff.impl.patch.PatchSyntaxException
+import java.io.IOException
+import java.io.Reader
+
+/**
+ * Reads a diff from a stream file by file.
+ *
+ * The diff is split at the git file headers and every section is passed to [sectionConsumer] as soon as it is read completely,
+ * so only one section of the diff is kept in memory at a time and the consumer decides how much of it to parse.
+ * A diff without git file headers is passed as a single section.
+ * The diff is either read from a [Reader] with [read] or passed line by line with [readLine] and then [finish].
+ */
+class GEStreamingPatchReader(private val sectionConsumer: (text: String) -> Unit) {
+
+  private val section = StringBuilder()
+  private val line = StringBuilder()
+
+  @Throws(IOException::class, PatchSyntaxException::class)
+  fun read(reader: Reader) {
+    val buffer = CharArray(BUFFER_SIZE)
+    while (true) {
+      val read = reader.read(buffer)
+      if (read < 0) break
+      var start = 0
+      for (i in 0 until read) {
+        if (buffer[i] == '\n') {
+          line.append(buffer, start, i - start + 1)
+          lineCompleted()
+          start = i + 1
+        }
+      }
+      line.append(buffer, start, read - start)
+    }
+    finish()
+  }
+
+  /**
+   * Passes a [text] of a line without the line separator
+   */
+  @Throws(PatchSyntaxException::class)
+  fun readLine(text: String) {
+    line.append(text).append('\n')
+    lineCompleted()
+  }
+
+  /**
+   * Passes the last section of the diff to the consumer
+   */
+  @Throws(PatchSyntaxException::class)
+  fun finish() {
+    lineCompleted()
+    flush()
+  }
+
+  private fun lineCompleted() {
+    if (line.isEmpty()) return
+    if (line.startsWith(FILE_HEADER_PREFIX)) flush()
+    section.append(line)
+    line.setLength(0)
+  }
+
+  private fun flush() {
+    if (section.isEmpty()) return
+    val text = section.toString()
+    section.setLength(0)
+    sectionConsumer(text)
+  }
+
+  companion object {
+    private const val FILE_HEADER_PREFIX = "diff --git "
+
+    private const val BUFFER_SIZE = 8192
+
+    @Throws(PatchSyntaxException::class)
+    fun parse(text: CharSequence): List<FilePatch> {
+      val reader = PatchReader(text, true)
+      reader.parseAllPatches()
+      return reader.allPatches
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.pullrequest.data
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Disposer
+import com.intellij.testFramework.PlatformTestUtil
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import com.intellij.util.ThrowableConvertor
+import cn.osc.gitee.api.*
+import cn.osc.gitee.util.GiteeSettings
+import java.io.IOException
+import java.io.InputStream
+import java.io.Reader
+import java.io.StringReader
+
+class GEPRListLoaderTest : BasePlatformTestCase() {
+
+  fun `test synchronized pull request which left the search result is removed`() {
+    val loader = createLoader(pullRequest(3, "2020-01-03"), pullRequest(2, "2020-01-02"), pullRequest(1, "2020-01-01"))
+    assertEquals(listOf(3L, 2L, 1L), loader.loadedData.map { it.number })
+
+    assertTrue(loader.synchronize(emptyList(), setOf("PR_2")))
+    assertEquals(listOf(3L, 1L), loader.loadedData.map { it.number })
+  }
+
+  private fun createLoader(vararg pullRequests: String): GEPRListLoader {
+    val executor = SearchResultExecutor("""{"data":{"search":{
+      "pageInfo":{"startCursor":null,"hasPreviousPage":false,"endCursor":null,"hasNextPage":false},
+      "nodes":[${pullRequests.joinToString(",")}]}}}""")
+    val repository = GERepositoryCoordinates(GiteeServerPath.DEFAULT_SERVER, GERepositoryPath("owner", "repo"))
+    val loader = GEPRListLoader(ProgressManager.getInstance(), executor, repository)
+    Disposer.register(testRootDisposable, loader)
+    loader.loadMore()
+    PlatformTestUtil.waitWithEventsDispatching("Pull requests were not loaded", { !loader.loading }, 10)
+    assertNull(loader.error)
+    return loader
+  }
+
+  private fun pullRequest(number: Long, createdAt: String) = """{
+    "id":"PR_$number","url":"https://github.com/owner/repo/pull/$number","number":$number,"title":"Pull request $number",
+    "state":"OPEN","isDraft":false,"author":null,"createdAt":"${createdAt}T00:00:00Z",
+    "assignees":{"nodes":[]},"labels":{"nodes":[]},"reviewRequests":{"nodes":[]},"reviewThreads":{"nodes":[]},
+    "mergeable":"UNKNOWN","viewerCanUpdate":false,"viewerDidAuthor":false}"""
+
+  private class SearchResultExecutor(private val body: String) : GiteeApiRequestExecutor.Base(GiteeSettings.getInstance()) {
+    override fun <T> execute(indicator: ProgressIndicator, request: GiteeApiRequest<T>): T =
+      request.extractResult(object : GiteeApiResponse {
+        override fun findHeader(headerName: String): String? = null
+
+        override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T = converter.convert(StringReader(body))
+
+        override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T =
+          converter.convert(body.byteInputStream())
+      })
+  }
+}
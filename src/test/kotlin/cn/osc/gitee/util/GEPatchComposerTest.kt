@@ -0,0 +1,111 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package cn.osc.gitee.util
+
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+
+class GEPatchComposerTest : BasePlatformTestCase() {
+
+  fun `test composed commit patches match cumulative patch`() {
+    val firstCommit = GEStreamingPatchReader.parse("""
+      diff --git a/a.txt b/a.txt
+      index 1111111..2222222 100644
+      --- a/a.txt
+      +++ b/a.txt
+      @@ -1,5 +1,5 @@
+       line1
+      -line2
+      +changed2
+       line3
+       line4
+       line5
+    """.trimIndent() + "\n")
+    val secondCommit = GEStreamingPatchReader.parse("""
+      diff --git a/a.txt b/a.txt
+      index 2222222..3333333 100644
+      --- a/a.txt
+      +++ b/a.txt
+      @@ -5,6 +5,6 @@
+       line5
+       line6
+       line7
+      -line8
+      +changed8
+       line9
+       line10
+      diff --git a/b.txt b/b.txt
+      new file mode 100644
+      index 0000000..4444444
+      --- /dev/null
+      +++ b/b.txt
+      @@ -0,0 +1,2 @@
+      +new1
+      +new2
+    """.trimIndent() + "\n")
+    val cumulative = GEStreamingPatchReader.parse("""
+      diff --git a/a.txt b/a.txt
+      index 1111111..3333333 100644
+      --- a/a.txt
+      +++ b/a.txt
+      @@ -1,10 +1,10 @@
+       line1
+      -line2
+      +changed2
+       line3
+       line4
+       line5
+       line6
+       line7
+      -line8
+      +changed8
+       line9
+       line10
+      diff --git a/b.txt b/b.txt
+      new file mode 100644
+      index 0000000..4444444
+      --- /dev/null
+      +++ b/b.txt
+      @@ -0,0 +1,2 @@
+      +new1
+      +new2
+    """.trimIndent() + "\n")
+
+    val composed = GEPatchComposer.composeCumulative(firstCommit, secondCommit)
+    assertNotNull(composed)
+    assertEquals(cumulative.map(::render), composed!!.map(::render))
+  }
+
+  fun `test file added and removed again is not in composed patch`() {
+    val firstCommit = GEStreamingPatchReader.parse("""
+      diff --git a/c.txt b/c.txt
+      new file mode 100644
+      index 0000000..5555555
+      --- /dev/null
+      +++ b/c.txt
+      @@ -0,0 +1 @@
+      +temporary
+    """.trimIndent() + "\n")
+    val secondCommit = GEStreamingPatchReader.parse("""
+      diff --git a/c.txt b/c.txt
+      deleted file mode 100644
+      index 5555555..0000000
+      --- a/c.txt
+      +++ /dev/null
+      @@ -1 +0,0 @@
+      -temporary
+    """.trimIndent() + "\n")
+
+    assertEquals(emptyList<FilePatch>(), GEPatchComposer.composeCumulative(firstCommit, secondCommit))
+  }
+
+  private fun render(patch: FilePatch): String = buildString {
+    append(patch.afterName ?: patch.beforeName).append('\n')
+    for (hunk in (patch as TextFilePatch).hunks) {
+      append("@@ ${hunk.startLineBefore},${hunk.endLineBefore} ${hunk.startLineAfter},${hunk.endLineAfter}\n")
+      for (line in hunk.lines) {
+        append(line.type).append(' ').append(line.text).append('\n')
+      }
+    }
+  }
+}